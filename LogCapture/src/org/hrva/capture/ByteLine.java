@@ -0,0 +1,88 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A CharSequence view of one line of ASCII bytes in a ByteBuffer.
+ *
+ * <p>The GPS log is ASCII, so each byte is one character and no charset
+ * decoding is needed.  {@link Reformat} parses a line through this view
+ * in place; only the values it keeps are copied into Strings.</p>
+ *
+ * <p>A ByteLine is reused for line after line.</p>
+ * <code><pre>
+ *     ByteLine line = new ByteLine();
+ *     reformat.parse( line.set(buffer, start, length), report );
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class ByteLine implements CharSequence {
+
+    /** The bytes. */
+    ByteBuffer buffer;
+
+    /** The offset of the line in the buffer. */
+    int start;
+
+    /** The length of the line. */
+    int length;
+
+    /**
+     * View a line of the buffer.
+     *
+     * @param buffer The bytes
+     * @param start The offset of the line in the buffer
+     * @param length The length of the line
+     * @return this ByteLine
+     */
+    public ByteLine set(ByteBuffer buffer, int start, int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return (char) (buffer.get(start + index) & 0xff);
+    }
+
+    /**
+     * Copy part of the line into a String.
+     *
+     * @param from The offset of the first character
+     * @param to The offset after the last character
+     * @return String
+     */
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException(from + ", " + to);
+        }
+        char[] text = new char[to - from];
+        for (int i = from; i != to; ++i) {
+            text[i - from] = (char) (buffer.get(start + i) & 0xff);
+        }
+        return new String(text);
+    }
+
+    @Override
+    public String toString() {
+        return (String) subSequence(0, length);
+    }
+}
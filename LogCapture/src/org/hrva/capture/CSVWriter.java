@@ -12,16 +12,26 @@ package org.hrva.capture;
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
  * Writes a CSV-formatfile using a Map<String,String> structure to provide
- * column names and values.
+ * column names and values.  A {@link VehicleReport} can be written, also;
+ * its values are bound to the columns by number.
  * 
  * <p>
  * This uses the "quotes-optional" and "Unix newline" dialect of CSV.
  * </p>
  * 
+ * <p>Rows are built in a buffer which is reused, and written to the
+ * Writer in large pieces, so a FileWriter doesn't need a BufferedWriter
+ * in front of it.  Each value is scanned once: it's copied as it's
+ * checked, and only moved over for the opening quote if it turns out to
+ * need one.  The heading row is escaped once, when the CSVWriter is built.
+ * Call {@link #flush()} or {@link #close()} when done; rows still in the
+ * buffer haven't been written.</p>
+ * 
  * <p>Here's a typical use case.</p>
  * <code><pre>
  *      String[] headings = { "Column 1", "Column 2" };
@@ -39,9 +49,30 @@ import java.util.Map;
  */
 public class CSVWriter {
     
+    /** The buffered rows are written once there are this many characters. */
+    static final int FLUSH_SIZE = 32 * 1024;
+    
     String[] columns;
     Writer wtr;
     
+    /** The {@link VehicleReport} column number of each column. */
+    int[] bound;
+    
+    /** The heading row, escaped. */
+    final char[] heading;
+    
+    /** Scratch space for one value. */
+    final StringBuilder cell = new StringBuilder();
+    
+    /** Rows not yet written to wtr. */
+    char[] buffer = new char[FLUSH_SIZE + 1024];
+    
+    /** The number of characters in buffer. */
+    int used = 0;
+    
+    /** The number of characters written to wtr. */
+    long written = 0;
+    
     /**
      * Opens the writer with a list of columns to use for the heading.
      * Any additional values on a given row are silently ignored.
@@ -53,6 +84,19 @@ public class CSVWriter {
         super();
         this.columns= columns;
         this.wtr= wtr;
+        this.bound= new int[columns.length];
+        for( int c= 0; c != columns.length; ++c ) {
+            bound[c]= VehicleReport.column(columns[c]);
+        }
+        for( int c= 0; c != columns.length; ++c ) {
+            if( c != 0 ) {
+                put(',');
+            }
+            put( columns[c] );
+        }
+        put('\n');
+        this.heading= Arrays.copyOf(buffer, used);
+        used= 0;
     }
     
     /**
@@ -63,14 +107,8 @@ public class CSVWriter {
      * @throws IOException
      */
     public void escape( String value ) throws IOException {
-        if( value.contains("\"") || value.contains(",") || value.contains("\n") ) {
-            wtr.write("\"");
-            wtr.write( value.replace("\"","\"\"") );
-            wtr.write("\"");
-        }
-        else {
-            wtr.write(value);
-        }
+        put( value );
+        end_row();
     }
     
     /**
@@ -79,13 +117,10 @@ public class CSVWriter {
      * @throws IOException
      */
     public void writeheading( ) throws IOException {
-        String separator= "";
-        for( String label : columns ) {
-            wtr.write(separator);
-            escape( label );
-            separator= ",";
-        }
-        wtr.write( "\n" );
+        reserve( heading.length );
+        System.arraycopy(heading, 0, buffer, used, heading.length);
+        used += heading.length;
+        end_row();
     }
     
     /**
@@ -94,15 +129,156 @@ public class CSVWriter {
      * @throws IOException
      */
     public void writerow( Map<String,String> row ) throws IOException {
-        String separator= "";
-        for( String label : columns ) {
-            wtr.write(separator);
-            if( row.containsKey(label)) {
-                escape( row.get(label) );
+        for( int c= 0; c != columns.length; ++c ) {
+            if( c != 0 ) {
+                put(',');
+            }
+            String value= row.get(columns[c]);
+            if( value != null ) {
+                put( value );
+            }
+        }
+        put('\n');
+        end_row();
+    }
+    
+    /**
+     * Writes a VehicleReport to the file.
+     * 
+     * <p>The columns were bound to VehicleReport column numbers when
+     * this CSVWriter was built; columns the report doesn't have are empty.</p>
+     * 
+     * @param row A VehicleReport.
+     * @throws IOException
+     */
+    public void writerow( VehicleReport row ) throws IOException {
+        for( int c= 0; c != bound.length; ++c ) {
+            if( c != 0 ) {
+                put(',');
+            }
+            cell.setLength(0);
+            row.append( bound[c], cell );
+            put( cell );
+        }
+        put('\n');
+        end_row();
+    }
+    
+    /**
+     * The number of characters of output so far, written or buffered.
+     * 
+     * @return size in characters
+     */
+    public long size( ) {
+        return written + used;
+    }
+    
+    /**
+     * Writes the buffered rows, and flushes the Writer.
+     * 
+     * @throws IOException
+     */
+    public void flush( ) throws IOException {
+        write_buffer();
+        wtr.flush();
+    }
+    
+    /**
+     * Writes the buffered rows, and closes the Writer.
+     * 
+     * @throws IOException
+     */
+    public void close( ) throws IOException {
+        try {
+            write_buffer();
+        } finally {
+            wtr.close();
+        }
+    }
+    
+    /**
+     * Writes the buffered rows to the Writer.
+     * 
+     * @throws IOException
+     */
+    void write_buffer( ) throws IOException {
+        if( used != 0 ) {
+            wtr.write(buffer, 0, used);
+            written += used;
+            used= 0;
+        }
+    }
+    
+    /**
+     * Writes the buffered rows if there are enough of them.
+     * 
+     * @throws IOException
+     */
+    void end_row( ) throws IOException {
+        if( used >= FLUSH_SIZE ) {
+            write_buffer();
+        }
+    }
+    
+    /**
+     * Makes room in the buffer for more characters.
+     * 
+     * @param size The number of characters
+     */
+    void reserve( int size ) {
+        if( used + size > buffer.length ) {
+            buffer= Arrays.copyOf(buffer, Math.max(2 * buffer.length, used + size));
+        }
+    }
+    
+    /**
+     * Adds one character to the buffer.
+     * 
+     * @param c The character
+     */
+    void put( char c ) {
+        reserve( 1 );
+        buffer[used++]= c;
+    }
+    
+    /**
+     * Adds a value to the buffer, escaped.
+     * 
+     * <p>The value is copied as it's scanned.  At the first character
+     * which needs quotes, the part already copied is moved over for the
+     * opening quote; the rest is copied with its quotes doubled.  Room
+     * is reserved for the worst case, every character a quote.</p>
+     * 
+     * @param value The value to quote if necessary.
+     */
+    void put( CharSequence value ) {
+        int length= value.length();
+        reserve( 2 * length + 2 );
+        char[] b= buffer;
+        int start= used;
+        int u= start;
+        int i= 0;
+        for( ; i != length; ++i ) {
+            char c= value.charAt(i);
+            if( c == '"' || c == ',' || c == '\n' ) {
+                break;
+            }
+            b[u++]= c;
+        }
+        if( i != length ) {
+            System.arraycopy(b, start, b, start + 1, i);
+            b[start]= '"';
+            ++u;
+            for( ; i != length; ++i ) {
+                char c= value.charAt(i);
+                if( c == '"' ) {
+                    b[u++]= '"';
+                }
+                b[u++]= c;
             }
-            separator= ",";
+            b[u++]= '"';
         }
-        wtr.write( "\n" );      
+        used= u;
     }
     
 }
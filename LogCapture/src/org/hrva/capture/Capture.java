@@ -12,8 +12,14 @@ package org.hrva.capture;
 import com.fourspaces.couchdb.Document;
 import java.io.*;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.kohsuke.args4j.Argument;
@@ -24,7 +30,9 @@ import org.kohsuke.args4j.Option;
 /**
  * Combination "Wrapper" which tails a log, reformats and then pushes.
  *
- * <p>This cycles on a one-minute interval. </p>
+ * <p>This cycles on a one-minute interval. With the <tt>-F</tt> option,
+ * it follows the log instead, and processes each extract as soon
+ * as the log grows. </p>
  *
  * <p>This is both a main program with a command-line interface, as well as
  * object that can be used to push. </p>
@@ -47,10 +55,28 @@ import org.kohsuke.args4j.Option;
  * <p>This will cycle indefinitely, capturing, reformatting and pushing extracts
  * from the log file. </p>
  *
+ * <p>Several logs can be captured by one process.  Each log has its own
+ * worker, extract file and CSV file; the log's base name is added to the
+ * file names, with its directory's name if two logs share a base name.  The workers share a pool of <tt>capture.threads</tt>
+ * threads, which defaults to the number of cores.</p>
+ * <code><pre>
+ * java -cp LogCapture/dist/LogCapture.jar org.hrva.capture.Capture /path/to/a.log /path/to/b.log
+ * </pre></code>
+ *
+ * <p>Each extract is passed from the tail to the reformat to the push
+ * in memory.  With the <tt>capture.debug_tap</tt> property, the extract
+ * and the CSV feed are also written to files.  To keep a history of the
+ * feed, set <tt>reformat.roll.directory</tt>; the reports are also
+ * appended to the {@link RollingSink} segments there.  When a worker
+ * stops, its CouchDB session and current segment are closed.</p>
+ *
  * <p>This uses the <tt>hrtail.properties</tt> file.</p> <dl>
+ * <dt><tt>capture.debug_tap</tt><dd>If <tt>true</tt>, write the log
+ * extracts and CSV feeds to files</dd>
  * <dt><tt>capture.extract_filename</tt><dd>The file to which to write log
  * extracts</dd> <dt><tt>capture.csv_filename</tt><dd>The file to which to write
- * reformatted extracts</dd> </dl>
+ * reformatted extracts</dd> <dt><tt>capture.threads</tt><dd>The number of
+ * worker threads</dd> </dl>
  *
  * @author slott
  */
@@ -75,19 +101,32 @@ public class Capture {
      */
     @Option(name = "-c", usage = "Cyclic Processing Interval, default 60 seconds")
     double cycle_time = 60.0;
+    /**
+     * Follow the log.
+     */
+    @Option(name = "-F", usage = "Follow the log; process extracts as it grows")
+    boolean follow = false;
     /**
      * Command-line Arguments.
      */
     @Argument
     List<String> arguments = new ArrayList<String>();
     /**
-     * The Scheduling timer.
+     * Debug tap: also write each extract and CSV feed to files.
+     */
+    boolean debug_tap;
+    /**
+     * The Scheduler, a bounded pool shared by all workers.
      */
-    Timer timer = new Timer();
+    ScheduledExecutorService scheduler;
     /**
-     * The scheduled operation.
+     * The scheduled operation for the first log.
      */
     Tail_Format_Push worker;
+    /**
+     * The scheduled operations, one per log.
+     */
+    List<Tail_Format_Push> workers = new ArrayList<Tail_Format_Push>();
     /**
      * Logger.
      */
@@ -134,6 +173,10 @@ public class Capture {
     public Capture(Properties global) {
         super();
         this.global = global;
+        int threads = Integer.parseInt(global.getProperty("capture.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        scheduler = new ScheduledThreadPoolExecutor(threads);
+        debug_tap = Boolean.parseBoolean(global.getProperty("capture.debug_tap", "false"));
         worker = new Tail_Format_Push();
     }
 
@@ -155,16 +198,65 @@ public class Capture {
         CmdLineParser parser = new CmdLineParser(this);
         parser.parseArgument(args);
 
-        if (arguments.size() != 1) {
-            throw new CmdLineException("Only one log file can be captured");
+        if (arguments.isEmpty()) {
+            throw new CmdLineException("Missing log file name");
         }
         for (String source : arguments) {
-            if (one_time) {
+            if (follow) {
+                follow(source);
+            } else if (one_time) {
                 capture(source, 0.0);
             } else {
                 capture(source, cycle_time);
             }
         }
+        if (one_time) {
+            // Let the pending captures finish, then let the threads go.
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted capturing");
+            }
+            for (Tail_Format_Push task : workers) {
+                if (task.schedule != null) {
+                    task.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a worker for a log.
+     *
+     * <p>The first log uses the default worker.  Each additional log gets
+     * a new worker.  When more than one log is captured, the extract
+     * and CSV filenames include the log's base name, qualified if it's
+     * ambiguous; see {@link LogTail#source_name(String, String, List)}.</p>
+     *
+     * @param source Log File to capture, reformat and push.
+     * @return The worker for this log
+     */
+    Tail_Format_Push worker_for(String source) {
+        Tail_Format_Push task = worker;
+        if (task.source_filename != null) {
+            task = new Tail_Format_Push();
+        }
+        String extract_name = global.getProperty("capture.extract_filename", "hrtrtf.txt");
+        String csv_name = global.getProperty("capture.csv_filename", "hrtrtf.csv");
+        if (arguments.size() > 1) {
+            extract_name = LogTail.source_name(extract_name, source, arguments);
+            csv_name = LogTail.source_name(csv_name, source, arguments);
+            if (task.reformat.roll != null) {
+                task.reformat.roll.prefix = LogTail.source_name(task.reformat.roll.prefix, source, arguments);
+            }
+        }
+        task.setSource_filename(source);
+        task.setExtract_filename(extract_name);
+        task.setCsv_filename(csv_name);
+        workers.add(task);
+        return task;
     }
 
     /**
@@ -177,24 +269,54 @@ public class Capture {
      * @param seconds Scheduling interval in seconds. 0.0 means one-time-only.
      */
     public void capture(String source, double seconds) {
-        worker.setSource_filename(source);
-        worker.setExtract_filename(global.getProperty("capture.extract_filename", "hrtrtf.txt"));
-        worker.setCsv_filename(global.getProperty("capture.csv_filename", "hrtrtf.csv"));
+        Tail_Format_Push task = worker_for(source);
         if (seconds == 0.0) {
-            timer.schedule(worker, 2 * 1000);
+            task.schedule = scheduler.schedule(task, 2 * 1000, TimeUnit.MILLISECONDS);
         } else {
             long interval = (long) seconds * 1000;
             long current = Calendar.getInstance().get(Calendar.SECOND);
-            timer.scheduleAtFixedRate(worker, (60 - current) * 1000, interval);
+            task.schedule = scheduler.scheduleAtFixedRate(task, (60 - current) * 1000, interval, TimeUnit.MILLISECONDS);
         }
     }
 
     /**
-     * TimerTask used to handle cycling log capture process.
+     * Follows a log file, reformatting and uploading each extract as
+     * soon as the log grows. <p>This starts a thread which runs until the
+     * worker is stopped.  A follower spends almost all of its time waiting
+     * for the log to grow, so it doesn't use the shared pool.</p>
+     *
+     * @param source Log File to follow, reformat and push.
+     * @return the following Thread
+     */
+    public Thread follow(final String source) {
+        final Tail_Format_Push task = worker_for(source);
+        Thread follower = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    task.tail.follow(source, task);
+                } catch (InterruptedException ex) {
+                    logger.info("Interrupted following " + source);
+                } catch (IOException ex) {
+                    logger.fatal("Follower Failed", ex);
+                } finally {
+                    task.close();
+                }
+            }
+        }, "follow " + source);
+        follower.start();
+        return follower;
+    }
+
+    /**
+     * Task used to handle cycling log capture process for one log.
+     *
+     * <p>This is also the TailSink used when a log is followed.</p>
      */
-    class Tail_Format_Push extends TimerTask {
+    class Tail_Format_Push implements Runnable, TailSink {
 
-        Timer timer;
+        Future<?> schedule;
+        boolean failed;
         String source_filename;
         String extract_filename;
         String csv_filename;
@@ -213,52 +335,119 @@ public class Capture {
         LogTail tail = new LogTail(global);
         Reformat reformat = new Reformat(global);
         CouchPush push = new CouchPush(global);
+        /** The CSV feed for the current extract, encoded as UTF-8; reused. */
+        ByteArrayOutputStream feed = new ByteArrayOutputStream();
+        /** Writes the CSV feed. */
+        Writer csv = new OutputStreamWriter(feed, Charset.forName("UTF-8"));
 
         Tail_Format_Push() {
             super();
         }
 
+        /**
+         * Cancel any further cycles of this task.
+         */
+        void cancel() {
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+            close();
+        }
+
+        /**
+         * Close the push's session, with its pooled connections, and the
+         * rolling feed, if there is one, so its current segment is
+         * complete.
+         */
+        void close() {
+            push.close();
+            if (reformat.roll == null) {
+                return;
+            }
+            try {
+                reformat.roll.close();
+            } catch (IOException ex) {
+                logger.error("Can't close " + reformat.roll.directory, ex);
+            }
+        }
+
         /**
          * Run the timer task. <p> This performs the standard three-step
-         * capture. </p> <ol> <li>LogTail</li> <li>Reformat</li>
+         * capture.  In catch-up mode, this repeats until the log's backlog
+         * is drained. </p> <ol> <li>LogTail</li> <li>Reformat</li>
          * <li>CouchPush</li> </ol>
          */
         @Override
         public void run() {
             try {
-                String created = tail.tail(source_filename, extract_filename);
-
-                if (created == null) {
-                    return;
-                }
-
-                Reader extract = new FileReader(new File(created));
-                File csv_file = new File(csv_filename);
-                Writer wtr = new FileWriter(csv_file, false);
-                reformat.include_header = true;
-                try {
-                    Object[] details = {extract_filename, csv_filename};
-                    logger.info(MessageFormat.format("Reformatting {0} to {1}", details));
-
-                    reformat.reformat(extract, wtr);
-                } finally {
-                    wtr.close();
-                }
-
-                logger.debug("About to push " + csv_filename);
-                push.open();
-                Document doc = push.push_feed(csv_file);
-                if (doc == null) {
-                    logger.error("Couch Push Failed.");
+                failed = false;
+                tail.drain(source_filename, this);
+                if (failed) {
                     cancel();
-                    return;
                 }
-                
             } catch (Exception ex) {
                 logger.fatal("Worker Failed", ex);
                 cancel();
                 throw new Error(ex);
             }
         }
+
+        /**
+         * Handle one extract from the log. <p>This reformats the
+         * extract in memory and pushes it.  If the push fails, the
+         * follow or catch-up is stopped.</p>
+         *
+         * @param source The log filename being followed
+         * @param sequence The sequence number of this extract
+         * @param extract The new bytes
+         * @throws IOException
+         */
+        public void extract(String source, long sequence, ByteBuffer extract) throws IOException {
+            if (debug_tap) {
+                tail.write_extract(extract_filename, sequence, extract);
+            }
+            if (!format_push(extract)) {
+                failed = true;
+                tail.stop();
+            }
+        }
+
+        /**
+         * Reformat an extract and push the resulting CSV feed.
+         *
+         * <p>The CSV feed is built in memory, encoded as UTF-8 as it's
+         * written.  The same bytes are pushed and, with the debug tap,
+         * written to the CSV file.</p>
+         *
+         * @param extract The bytes of the extract
+         * @return true if the push succeeded
+         * @throws IOException
+         */
+        boolean format_push(ByteBuffer extract) throws IOException {
+            Object[] details = {source_filename};
+            logger.info(MessageFormat.format("Reformatting {0}", details));
+            feed.reset();
+            reformat.include_header = true;
+            reformat.reformat(extract, csv);
+            csv.flush();
+            byte[] content = feed.toByteArray();
+            if (debug_tap) {
+                OutputStream ostr = new FileOutputStream(new File(csv_filename), false);
+                try {
+                    ostr.write(content);
+                } finally {
+                    ostr.close();
+                }
+            }
+
+            logger.debug("About to push " + source_filename);
+            push.open();
+            Document doc = push.push_feed(content, new Date());
+            if (doc == null) {
+                logger.error("Couch Push Failed.");
+                return false;
+            }
+            return true;
+        }
     }
 }
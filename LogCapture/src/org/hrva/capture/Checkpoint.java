@@ -0,0 +1,421 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The LogTail history: a crash-safe checkpoint of the position, sequence
+ * number and identity of each log.
+ *
+ * <p>The checkpoint is a small binary file.  It is never rewritten in
+ * place.  Each commit writes a complete new copy to a temporary file,
+ * forces it to disk, and renames it over the old copy.  A crash leaves
+ * either the old checkpoint or the new one, never a mixture.  A CRC
+ * at the end of the file detects any other damage.</p>
+ *
+ * <p>All the logs tailed by one process share one Checkpoint for each
+ * history file.  Commits use a group commit: while one thread is writing
+ * the file, other threads' updates accumulate, and the next write
+ * makes all of them durable at once.  A burst of extracts from several
+ * followed logs costs one or two writes, not one per log.</p>
+ *
+ * <p>An older history file, in <tt>Properties</tt> format with
+ * <tt>size.</tt><i>log</i>, <tt>seq.</tt><i>log</i> and
+ * <tt>id.</tt><i>log</i> keys, is read and migrated.  The first commit
+ * replaces it with the binary format.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     Checkpoint history = Checkpoint.open("logtail.history");
+ *     Checkpoint.Entry saved = history.get(source);
+ *     ...
+ *     history.update(source, position, saved.sequence+1, identity);
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class Checkpoint {
+
+    /** The first four bytes of a binary checkpoint: "LTCK". */
+    static final int MAGIC = 0x4C54434B;
+
+    /** The checkpoint format version. */
+    static final int VERSION = 1;
+
+    /** The Checkpoints in use in this process, by absolute filename. */
+    static final Map<String, Checkpoint> open_checkpoints = new HashMap<String, Checkpoint>();
+
+    /** The checkpoint file. */
+    final File file;
+
+    /** The saved state of each log. */
+    final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /** Count of updates made to entries. */
+    long updated = 0;
+
+    /** Count of updates which are durable on disk. */
+    long committed = 0;
+
+    /** Set while one thread is writing the file for everyone. */
+    boolean writing = false;
+
+    /** Modification time of the file when last read or written. */
+    long stamp_modified = -1;
+
+    /** Length of the file when last read or written. */
+    long stamp_length = -1;
+
+    /** Logger. */
+    final Log logger = LogFactory.getLog(Checkpoint.class);
+
+    /**
+     * The saved state of one log.
+     */
+    public static class Entry {
+
+        /** The position reached in the log. */
+        public final long position;
+        /** The sequence number of the last extract. */
+        public final long sequence;
+        /** The identity of the file position refers to, or null. */
+        public final FileIdentity identity;
+
+        /**
+         * Build an Entry.
+         *
+         * @param position The position reached in the log
+         * @param sequence The sequence number of the last extract
+         * @param identity The identity of the log file, or null
+         */
+        public Entry(long position, long sequence, FileIdentity identity) {
+            super();
+            this.position = position;
+            this.sequence = sequence;
+            this.identity = identity;
+        }
+    }
+
+    /** The Entry of a log which has never been tailed. */
+    static final Entry NONE = new Entry(0, 0, null);
+
+    /**
+     * Get the Checkpoint for a history file.
+     *
+     * <p>Every caller in this process which names the same file gets
+     * the same Checkpoint.</p>
+     *
+     * @param name The history filename
+     * @return Checkpoint
+     */
+    public static Checkpoint open(String name) {
+        File file = new File(name).getAbsoluteFile();
+        synchronized (open_checkpoints) {
+            Checkpoint checkpoint = open_checkpoints.get(file.getPath());
+            if (checkpoint == null) {
+                checkpoint = new Checkpoint(file);
+                open_checkpoints.put(file.getPath(), checkpoint);
+            }
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Build a Checkpoint; use {@link #open(String)}.
+     *
+     * @param file The history file
+     */
+    Checkpoint(File file) {
+        super();
+        this.file = file;
+    }
+
+    /**
+     * Get the saved state of a log.
+     *
+     * @param source The log filename
+     * @return Entry, with zero position and sequence if the log has
+     * never been tailed
+     */
+    public synchronized Entry get(String source) {
+        refresh();
+        Entry entry = entries.get(source);
+        return entry == null ? NONE : entry;
+    }
+
+    /**
+     * Update the saved state of a log in memory.
+     *
+     * <p>This is not durable until {@link #commit()}.</p>
+     *
+     * @param source The log filename
+     * @param position The position reached in the log
+     * @param sequence The sequence number of the last extract
+     * @param identity The identity of the log file
+     */
+    public synchronized void put(String source, long position, long sequence, FileIdentity identity) {
+        refresh();
+        entries.put(source, new Entry(position, sequence, identity));
+        updated += 1;
+    }
+
+    /**
+     * Update the saved state of a log and make it durable.
+     *
+     * @param source The log filename
+     * @param position The position reached in the log
+     * @param sequence The sequence number of the last extract
+     * @param identity The identity of the log file
+     * @throws IOException
+     */
+    public void update(String source, long position, long sequence, FileIdentity identity) throws IOException {
+        put(source, position, sequence, identity);
+        commit();
+    }
+
+    /**
+     * Make all the updates made so far durable.
+     *
+     * <p>If another thread is already writing, this waits for it; the
+     * next write includes this thread's updates and those of any other
+     * waiting threads.</p>
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        Map<String, Entry> snapshot;
+        long generation;
+        synchronized (this) {
+            long target = updated;
+            while (writing && committed < target) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted committing " + file);
+                }
+            }
+            if (committed >= target) {
+                return;
+            }
+            writing = true;
+            snapshot = new TreeMap<String, Entry>(entries);
+            generation = updated;
+        }
+        boolean written = false;
+        try {
+            write(snapshot);
+            written = true;
+        } finally {
+            synchronized (this) {
+                writing = false;
+                if (written) {
+                    committed = generation;
+                    stamp_modified = file.lastModified();
+                    stamp_length = file.length();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A Properties view of the checkpoint, using the
+     * <tt>size.</tt>, <tt>seq.</tt> and <tt>id.</tt> keys of the
+     * older history file.
+     *
+     * @return Properties
+     */
+    public synchronized Properties to_properties() {
+        refresh();
+        Properties state = new Properties();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            state.setProperty("size." + item.getKey(), String.valueOf(entry.position));
+            state.setProperty("seq." + item.getKey(), String.valueOf(entry.sequence));
+            if (entry.identity != null) {
+                state.setProperty("id." + item.getKey(), entry.identity.toString());
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Update entries from the <tt>size.</tt>, <tt>seq.</tt> and
+     * <tt>id.</tt> keys of an older history file.
+     *
+     * @param state The Properties
+     */
+    public synchronized void put_properties(Properties state) {
+        refresh();
+        merge(state);
+    }
+
+    /**
+     * Merge the <tt>size.</tt>, <tt>seq.</tt> and <tt>id.</tt> keys
+     * into the entries.
+     *
+     * @param state The Properties
+     */
+    void merge(Properties state) {
+        for (String key : state.stringPropertyNames()) {
+            if (!key.startsWith("size.")) {
+                continue;
+            }
+            String source = key.substring("size.".length());
+            entries.put(source, new Entry(
+                    Long.parseLong(state.getProperty(key)),
+                    Long.parseLong(state.getProperty("seq." + source, "0")),
+                    FileIdentity.parse(state.getProperty("id." + source))));
+        }
+        updated += 1;
+    }
+
+    /**
+     * Reload the file if it was changed outside this Checkpoint
+     * (for example, deleted) and there are no uncommitted updates.
+     */
+    void refresh() {
+        if (writing || committed != updated) {
+            return;
+        }
+        if (file.lastModified() == stamp_modified && file.length() == stamp_length) {
+            return;
+        }
+        entries.clear();
+        stamp_modified = file.lastModified();
+        stamp_length = file.length();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            read();
+        } catch (IOException ex) {
+            logger.warn("Problems with history " + file, ex);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Read the file, in either the binary or the older Properties format.
+     *
+     * @throws IOException
+     */
+    void read() throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        DataInputStream istr = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length < 4 || istr.readInt() != MAGIC) {
+            Properties state = new Properties();
+            state.load(new ByteArrayInputStream(content));
+            logger.info("Migrating history " + file);
+            merge(state);
+            // Migrated entries are saved by the next commit.
+            committed = updated - 1;
+            return;
+        }
+        if (content.length < 20) {
+            throw new IOException("Damaged history " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 8);
+        istr.mark(content.length);
+        istr.skip(content.length - 12);
+        if (istr.readLong() != crc.getValue()) {
+            throw new IOException("Damaged history " + file);
+        }
+        istr.reset();
+        int version = istr.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown history version " + version);
+        }
+        int count = istr.readInt();
+        for (int i = 0; i != count; ++i) {
+            String source = istr.readUTF();
+            long position = istr.readLong();
+            long sequence = istr.readLong();
+            String identity = istr.readUTF();
+            entries.put(source, new Entry(position, sequence,
+                    identity.length() == 0 ? null : FileIdentity.parse(identity)));
+        }
+    }
+
+    /**
+     * Write a new copy of the file: write a temporary file, force it to
+     * disk, and rename it over the old file.
+     *
+     * @param snapshot The entries to write
+     * @throws IOException
+     */
+    void write(Map<String, Entry> snapshot) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream ostr = new DataOutputStream(buffer);
+        ostr.writeInt(MAGIC);
+        ostr.writeInt(VERSION);
+        ostr.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> item : snapshot.entrySet()) {
+            Entry entry = item.getValue();
+            ostr.writeUTF(item.getKey());
+            ostr.writeLong(entry.position);
+            ostr.writeLong(entry.sequence);
+            ostr.writeUTF(entry.identity == null ? "" : entry.identity.toString());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        ostr.writeLong(crc.getValue());
+        ostr.flush();
+
+        Path target = file.toPath();
+        Path temporary = target.resolveSibling(file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary.toFile());
+        try {
+            buffer.writeTo(out);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        force_directory(target.getParent());
+    }
+
+    /**
+     * Force a directory to disk, so that a rename in it is durable.
+     *
+     * <p>Not every platform can open a directory; there, the rename is
+     * as durable as the platform makes it.</p>
+     *
+     * @param directory The directory
+     */
+    static void force_directory(Path directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            // Not supported here.
+        }
+    }
+}
@@ -14,11 +14,13 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory; 
 
@@ -52,8 +54,30 @@ import org.apache.commons.logging.LogFactory;
  * <p>Depends on a <tt>hrtail.properties</tt> properties file.</p>
  * <dl>
  * <dt>couchpush.db_url</dt><dd>The database URL to use</dd>
+ * <dt>couchpush.idle_timeout</dt><dd>Seconds a pooled connection can
+ * be idle before it's closed, default 30.</dd>
+ * <dt>couchpush.max_connections_per_route</dt><dd>The most connections
+ * to the database at once, default 4.</dd>
+ * <dt>couchpush.max_connections</dt><dd>The most connections in the
+ * pool, default 20.</dd>
+ * <dt>couchpush.keep_alive</dt><dd>The most seconds a connection is 
+ * kept alive, default 30.  The server's Keep-Alive timeout, if shorter, 
+ * is used instead.  Negative uses the server's alone; 0 closes each
+ * connection after its request.</dd>
+ * <dt>couchpush.stale_check</dt><dd>Check a pooled connection is still
+ * open before using it, default true.</dd>
+ * <dt>couchpush.connect_timeout</dt><dd>Seconds to wait to connect, 
+ * default 15; 0 waits forever.</dd>
+ * <dt>couchpush.socket_timeout</dt><dd>Seconds to wait for a response,
+ * default 30; 0 waits forever.</dd>
+ * <dt>couchpush.pool_timeout</dt><dd>Seconds to wait for a pooled
+ * connection when they're all in use, default 30; 0 waits forever.</dd>
  * </dl>
  * 
+ * <p>A CouchPush keeps its session, and the session's pool of
+ * keep-alive connections, from one push to the next.  
+ * {@link #close()} releases them.</p>
+ * 
  * <p>Uses <a href="https://github.com/mbreese/couchdb4j">CouchDB4J</a></p>
  *
  * <p>Uses <a href="http://args4j.kohsuke.org/">Args4J</a></p>
@@ -76,10 +100,18 @@ public class CouchPush {
     // Use GMT for timestamps to avoid EST/EDT problems.
     private TimeZone zulu = TimeZone.getTimeZone("GMT");
 
-    // Couchdb Session and Database
+    // Couchdb Session and Database.  The Session is kept open, and
+    // the Database is looked up again only after a failed push.
     private Session s;
     private Database db;
     
+    // The URL of the open Session, and its database path.
+    private String db_url;
+    private String db_path;
+    
+    // Attachments are sent as UTF-8.
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     // Used to format timestamps in GMT.
     private DateFormat fmt_date_time;
     
@@ -156,8 +188,8 @@ public class CouchPush {
     /**
      * Main program to parse arguments and push a feed or mapping file.
      * 
-     * <p>Parses command-line arguments.  Builds document, posts
-     * document and puts attachment.
+     * <p>Parses command-line arguments.  Builds document with
+     * its attachment inline and posts both at once.
      * </p>
      * 
      * <p>Accepts the following options</p>
@@ -197,27 +229,30 @@ public class CouchPush {
         }
 
         open();
-
-        for (String filename : arguments) {
-            Object[] details = {
-                mapping, effective, filename, s.getHost(), db.getName()
-            };
-            File attachment= new File(filename);
-            Document doc;
-            if (feed) {
-                String msg = MessageFormat.format( 
-                        "Push Feed {2} to {3}/{4}", details );
-                logger.info( msg );
-                doc= push_feed(attachment);
-            } else {
-                String msg = MessageFormat.format(
-                        "Push {0} Mapping {2} to {3}/{4}", details );
-                logger.info(msg);
-                doc= push_mapping(mapping, effective, attachment);
-            }
-            if( doc != null ) {
-                logger.info("Created " + doc.getId());
+        try {
+            for (String filename : arguments) {
+                Object[] details = {
+                    mapping, effective, filename, s.getHost(), database().getName()
+                };
+                File attachment= new File(filename);
+                Document doc;
+                if (feed) {
+                    String msg = MessageFormat.format( 
+                            "Push Feed {2} to {3}/{4}", details );
+                    logger.info( msg );
+                    doc= push_feed(attachment);
+                } else {
+                    String msg = MessageFormat.format(
+                            "Push {0} Mapping {2} to {3}/{4}", details );
+                    logger.info(msg);
+                    doc= push_mapping(mapping, effective, attachment);
+                }
+                if( doc != null ) {
+                    logger.info("Created " + doc.getId());
+                }
             }
+        } finally {
+            close();
         }
     }
 
@@ -238,14 +273,73 @@ public class CouchPush {
     /**
      * Opens the given CouchDB session and databsae.
      * 
+     * <p>If the session for this URL is already open, it's reused,
+     * with its pooled connections.  The database isn't checked until
+     * it's needed for a push.</p>
+     * 
      * @param url_override
      * @throws MalformedURLException
      * @throws IOException  
      */
     public void open(String url_override) throws MalformedURLException, IOException {
+        if( s != null && url_override.equals(db_url) ) {
+            return;
+        }
         URL details= new URL( url_override );
-        s = new Session(details.getHost(), details.getPort());
-        db = s.getDatabase(details.getPath());
+        close();
+        s = session(details);
+        long idle= Long.parseLong(global.getProperty("couchpush.idle_timeout", "30"));
+        s.startIdleConnectionMonitor(idle, TimeUnit.SECONDS);
+        db_url= url_override;
+        db_path= details.getPath();
+    }
+
+    /**
+     * Builds a Session with the pool, keep-alive and timeouts 
+     * from the <tt>couchpush.*</tt> properties.
+     * 
+     * @param details the database URL
+     * @return Session
+     */
+    Session session(URL details) {
+        return new Session.Builder(details.getHost(), details.getPort())
+            .maxConnectionsPerRoute(Integer.parseInt(global.getProperty("couchpush.max_connections_per_route", "4")))
+            .maxTotalConnections(Integer.parseInt(global.getProperty("couchpush.max_connections", "20")))
+            .keepAlive(1000L * Long.parseLong(global.getProperty("couchpush.keep_alive", "30")))
+            .staleChecking(Boolean.parseBoolean(global.getProperty("couchpush.stale_check", "true")))
+            .connectionTimeout(1000 * Integer.parseInt(global.getProperty("couchpush.connect_timeout", "15")))
+            .socketTimeout(1000 * Integer.parseInt(global.getProperty("couchpush.socket_timeout", "30")))
+            .poolTimeout(1000L * Long.parseLong(global.getProperty("couchpush.pool_timeout", "30")))
+            .build();
+    }
+
+    /**
+     * Closes the session and its connections.
+     */
+    public void close() {
+        if( s != null ) {
+            s.shutdown();
+        }
+        s= null;
+        db= null;
+        db_url= null;
+    }
+
+    /**
+     * The open database.  This is looked up on the first push, and
+     * again after a failed push.
+     * 
+     * @return Database
+     * @throws IOException if the database can't be found
+     */
+    Database database() throws IOException {
+        if( db == null ) {
+            db= s.getDatabase(db_path);
+            if( db == null ) {
+                throw new IOException( "Can't open database "+db_url );
+            }
+        }
+        return db;
     }
 
     /**
@@ -265,14 +359,52 @@ public class CouchPush {
      */
     public Document push_feed(File attachment) throws FileNotFoundException {
         Date modified = new Date(attachment.lastModified());
+        Document document = feed_document(modified);
+
+        boolean ok= create(document, "feed", attachment );
+        if( ok ) return document;
+        return null;
+    }
+
+    /**
+     * Pushes a single feed held in memory.  This is the same as
+     * {@link #push_feed(File)}, without a file to read.
+     * 
+     * @param content the CSV feed to push
+     * @param modified the timestamp of the feed
+     * @return Document object that was created.
+     */
+    public Document push_feed(String content, Date modified) {
+        return push_feed(content.getBytes(UTF8), modified);
+    }
+
+    /**
+     * Pushes a single feed already encoded as UTF-8 bytes.
+     * 
+     * @param content the CSV feed to push
+     * @param modified the timestamp of the feed
+     * @return Document object that was created.
+     */
+    public Document push_feed(byte[] content, Date modified) {
+        Document document = feed_document(modified);
+
+        boolean ok= create(document, "feed", content );
+        if( ok ) return document;
+        return null;
+    }
+
+    /**
+     * Builds a feed document.
+     * 
+     * @param modified the timestamp of the feed
+     * @return Document with timestamp, status and doc_type.
+     */
+    Document feed_document(Date modified) {
         Document document = new Document();
         document.put("timestamp", fmt_date_time.format(modified));
         document.put("status", "new");
         document.put("doc_type", "Feed");
-
-        boolean ok= push(document, "feed", new FileReader(attachment) );
-        if( ok ) return document;
-        return null;
+        return document;
     }
 
     /**
@@ -301,14 +433,95 @@ public class CouchPush {
         document.put("effective_date", effective);
         document.put("doc_type", "Mapping");
 
-        boolean ok=push(document, "content", new FileReader(attachment) );
+        boolean ok=create(document, "content", attachment );
         if( ok ) return document;
         return null;
     }
 
+    /**
+     * Creates a document with a file attached, in one request.
+     * 
+     * <p>The attachment is sent inline, in the document's
+     * <tt>_attachments</tt>.  Unlike {@link #push(Document, String, File)},
+     * there's no second round trip, and no document is left without 
+     * its attachment if the push fails.  The file is streamed to CouchDB,
+     * base64 encoded as it's read; it's never held in memory.</p>
+     * 
+     * @param document the CouchDB Document instance to push; 
+     *  this is updated it id and rev.
+     * @param name the attachment name (generally feed or content)
+     * @param attachment the File to attach
+     * @return  True if the push was successful.
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    public boolean create(Document document, String name, File attachment) throws FileNotFoundException {
+        if( ! attachment.isFile() ) {
+            throw new FileNotFoundException( attachment.getPath() );
+        }
+        try {
+            database().saveDocument(document, name, "text/csv", attachment);
+        } catch (java.io.IOException ex2) {
+            logger.error(ex2);
+        }
+        return saved(document);
+    }
+
+    /**
+     * Creates a document with an attachment held in memory, in one 
+     * request.  This is the same as {@link #create(Document, String, File)},
+     * without a file to read.
+     * 
+     * @param document the CouchDB Document instance to push; 
+     *  this is updated it id and rev.
+     * @param name the attachment name (generally feed or content)
+     * @param content the attachment
+     * @return  True if the push was successful.
+     */
+    public boolean create(Document document, String name, byte[] content) {
+        try {
+            database().saveDocument(document, name, "text/csv", content);
+        } catch (java.io.IOException ex2) {
+            logger.error(ex2);
+        }
+        return saved(document);
+    }
+
     /**
      * Generic POST of a document following by a PUSH of an attachment.
      * 
+     * <p>The file is streamed to CouchDB as it's read; it's never
+     * held in memory.</p>
+     * 
+     * @param document the CouchDB Document instance to push; 
+     *  this is updated it id and rev.
+     * @param name the attachment name (generally feed or content)
+     * @param attachment the File to attach
+     * @return  True if the push was successful.
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    public boolean push(Document document, String name, File attachment) throws FileNotFoundException {
+        if( ! attachment.isFile() ) {
+            throw new FileNotFoundException( attachment.getPath() );
+        }
+        try {
+            if( ! save(document) ) {
+                return false;
+            }
+            Document resp= database().putAttachment(document.getId(), document.getRev(), name, "text/csv", attachment);
+            return ok(resp);
+            
+        } catch (java.io.IOException ex2) {
+            logger.error(ex2);
+        }
+        return false;
+    }
+
+    /**
+     * Generic POST of a document following by a PUSH of an attachment.
+     * 
+     * <p>This reads the whole attachment into memory first; 
+     * {@link #push(Document, String, File)} streams it instead.</p>
+     * 
      * @param document the CouchDB Document instance to push; 
      *  this is updated it id and rev.
      * @param name the attachment name (generally feed or content)
@@ -319,24 +532,13 @@ public class CouchPush {
         try {
             BufferedReader rdr = new BufferedReader(attachment);
 
-            db.saveDocument(document);
-            String id = (String) document.getId();
-            String rev1 = (String) document.getRev();
-            if( verbose ) {
-                logger.debug( document );
-            }
-
             StringBuilder content = new StringBuilder();
             String line = rdr.readLine();
             while (line != null) {
                 content.append(line);  content.append('\n');
                 line = rdr.readLine();
             }
-            Document resp= db.putAttachment(id, rev1, name, "text/csv", content.toString());
-            if( verbose ) {
-                logger.debug( resp );
-            }
-            return resp.getBoolean("ok");
+            return push(document, name, content.toString());
             
         } catch (java.io.FileNotFoundException ex1) {
             logger.error(ex1);
@@ -346,4 +548,91 @@ public class CouchPush {
         return false;
 
     }
+
+    /**
+     * Generic POST of a document following by a PUSH of an attachment
+     * held in memory.
+     * 
+     * @param document the CouchDB Document instance to push; 
+     *  this is updated it id and rev.
+     * @param name the attachment name (generally feed or content)
+     * @param content the attachment
+     * @return  True if the push was successful.
+     */
+    public boolean push(Document document, String name, String content) {
+        return push(document, name, content.getBytes(UTF8));
+    }
+
+    /**
+     * Generic POST of a document following by a PUSH of an attachment
+     * already encoded as bytes.
+     * 
+     * @param document the CouchDB Document instance to push; 
+     *  this is updated it id and rev.
+     * @param name the attachment name (generally feed or content)
+     * @param content the attachment
+     * @return  True if the push was successful.
+     */
+    public boolean push(Document document, String name, byte[] content) {
+        try {
+            if( ! save(document) ) {
+                return false;
+            }
+            Document resp= database().putAttachment(document.getId(), document.getRev(), name, "text/csv", content);
+            return ok(resp);
+            
+        } catch (java.io.IOException ex2) {
+            logger.error(ex2);
+        }
+        return false;
+
+    }
+
+    /**
+     * POST a document, which gets its id and rev.
+     * 
+     * @param document the CouchDB Document instance to push
+     * @return True if the document was saved.
+     * @throws IOException 
+     */
+    boolean save(Document document) throws IOException {
+        try {
+            database().saveDocument(document);
+        } catch (IOException ex) {
+            db= null;
+            throw ex;
+        }
+        return saved(document);
+    }
+
+    /**
+     * Check that a POSTed document got its rev.
+     * 
+     * @param document the CouchDB Document instance pushed
+     * @return True if the document was saved.
+     */
+    boolean saved(Document document) {
+        boolean saved= document.getRev().length() > 0;
+        if( ! saved ) {
+            // Look the database up again on the next push.
+            db= null;
+        }
+        if( verbose ) {
+            logger.debug( document );
+        }
+        return saved;
+    }
+
+    /**
+     * Check the response to an attachment PUT.
+     * 
+     * @param resp the response document
+     * @return True if CouchDB said ok.
+     */
+    boolean ok(Document resp) {
+        if( verbose ) {
+            logger.debug( resp );
+        }
+        return resp.getBoolean("ok");
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The identity of a log file, used to detect rotation.
+ *
+ * <p>An identity has two parts.</p>
+ * <ul>
+ * <li>The file key.  On Unix, this is the device and inode.  A log which is
+ * rotated by renaming keeps its key; the new log has a different key.</li>
+ * <li>A fingerprint of the head of the file: a CRC of the first
+ * {@link #HEAD_SIZE} bytes.  A log which is rotated by copying and
+ * truncating keeps its key; the copy, even when compressed, has the same
+ * head.</li>
+ * </ul>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     FileIdentity saved = FileIdentity.parse( state.getProperty("id."+source) );
+ *     File log = new File(source);
+ *     if( ! saved.same_file(log) ) {
+ *         File previous = saved.find_rotated(log, position);
+ *         ...
+ *     }
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class FileIdentity {
+
+    /** Number of bytes at the head of a file used for the fingerprint. */
+    static final int HEAD_SIZE = 256;
+
+    /** The file key, or an empty string if the file system has none. */
+    final String key;
+
+    /** The CRC of the first head_length bytes. */
+    final long head_crc;
+
+    /** The number of bytes covered by the head_crc. */
+    final int head_length;
+
+    /**
+     * Build a FileIdentity.
+     *
+     * @param key The file key
+     * @param head_crc The CRC of the head of the file
+     * @param head_length The number of bytes in the head
+     */
+    FileIdentity(String key, long head_crc, int head_length) {
+        super();
+        this.key = key;
+        this.head_crc = head_crc;
+        this.head_length = head_length;
+    }
+
+    /**
+     * Get the identity of a file.
+     *
+     * @param file The file
+     * @return FileIdentity
+     * @throws IOException
+     */
+    public static FileIdentity of(File file) throws IOException {
+        InputStream head = open(file);
+        try {
+            CRC32 crc = new CRC32();
+            int length = checksum(head, HEAD_SIZE, crc);
+            return new FileIdentity(key_of(file), crc.getValue(), length);
+        } finally {
+            head.close();
+        }
+    }
+
+    /**
+     * Parse a saved identity, as produced by {@link #toString()}.
+     *
+     * @param saved The saved identity, or null
+     * @return FileIdentity, or null if there was no saved identity
+     */
+    public static FileIdentity parse(String saved) {
+        if (saved == null) {
+            return null;
+        }
+        int crc_start = saved.lastIndexOf('|', saved.lastIndexOf('|') - 1);
+        int len_start = saved.lastIndexOf('|');
+        if (crc_start < 0) {
+            return null;
+        }
+        return new FileIdentity(saved.substring(0, crc_start),
+                Long.parseLong(saved.substring(crc_start + 1, len_start)),
+                Integer.parseInt(saved.substring(len_start + 1)));
+    }
+
+    /**
+     * The saved form of this identity: <tt>key|crc|length</tt>.
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        return key + "|" + head_crc + "|" + head_length;
+    }
+
+    /**
+     * Is the given file still the file with this identity?
+     *
+     * <p>It's not the same file if the key has changed or the head of
+     * the file has changed.</p>
+     *
+     * @param file The file, which may no longer exist
+     * @return true if this is the same file
+     * @throws IOException
+     */
+    public boolean same_file(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        if (key.length() != 0 && !key.equals(key_of(file))) {
+            return false;
+        }
+        return same_head(file);
+    }
+
+    /**
+     * Does the given file have the same head as this identity?
+     *
+     * <p>A <tt>.gz</tt> file's head is the head of its decompressed
+     * content.</p>
+     *
+     * @param file The file
+     * @return true if the first head_length bytes have the same CRC
+     * @throws IOException
+     */
+    public boolean same_head(File file) throws IOException {
+        InputStream head = open(file);
+        try {
+            CRC32 crc = new CRC32();
+            int length = checksum(head, head_length, crc);
+            return length == head_length && crc.getValue() == head_crc;
+        } finally {
+            head.close();
+        }
+    }
+
+    /**
+     * Find the rotated segment which was the log with this identity.
+     *
+     * <p>The candidates are the siblings of the log whose names begin
+     * with the log's name; for example <tt>some.log.1</tt>,
+     * <tt>some.log-20120315</tt> or <tt>some.log.1.gz</tt>.  The newest
+     * candidate that has this file key, or this head and at least
+     * <tt>position</tt> bytes, is the rotated segment.</p>
+     *
+     * @param log The log file
+     * @param position The position reached in the old log
+     * @return The rotated segment, or null if it can't be found
+     * @throws IOException
+     */
+    public File find_rotated(File log, long position) throws IOException {
+        File dir = log.getAbsoluteFile().getParentFile();
+        final String name = log.getName();
+        File[] siblings = dir.listFiles(new FileFilter() {
+
+            public boolean accept(File candidate) {
+                return candidate.isFile()
+                        && candidate.getName().startsWith(name)
+                        && !candidate.getName().equals(name);
+            }
+        });
+        if (siblings == null) {
+            return null;
+        }
+        List<File> candidates = new ArrayList<File>();
+        Collections.addAll(candidates, siblings);
+        Collections.sort(candidates, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        for (File candidate : candidates) {
+            if (is_compressed(candidate)) {
+                if (same_head(candidate)) {
+                    return candidate;
+                }
+            } else if (key.length() != 0 && key.equals(key_of(candidate))) {
+                return candidate;
+            } else if (candidate.length() >= position && same_head(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is this a compressed (<tt>.gz</tt>) segment?
+     *
+     * @param file The file
+     * @return true if the file is gzip-compressed
+     */
+    public static boolean is_compressed(File file) {
+        return file.getName().endsWith(".gz");
+    }
+
+    /**
+     * Open a file for reading, decompressing a <tt>.gz</tt> file.
+     *
+     * @param file The file
+     * @return An InputStream with the file's (decompressed) content
+     * @throws IOException
+     */
+    public static InputStream open(File file) throws IOException {
+        InputStream istr = new FileInputStream(file);
+        if (is_compressed(file)) {
+            try {
+                return new GZIPInputStream(istr);
+            } catch (IOException ex) {
+                istr.close();
+                throw ex;
+            }
+        }
+        return istr;
+    }
+
+    /**
+     * Get the file key of a file.
+     *
+     * @param file The file
+     * @return The file key, or an empty string if there isn't one
+     * @throws IOException
+     */
+    static String key_of(File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object file_key = attrs.fileKey();
+        return file_key == null ? "" : file_key.toString();
+    }
+
+    /**
+     * Update a CRC with up to <tt>limit</tt> bytes from a stream.
+     *
+     * @param istr The stream
+     * @param limit The maximum number of bytes
+     * @param crc The CRC
+     * @return The number of bytes used
+     * @throws IOException
+     */
+    static int checksum(InputStream istr, int limit, CRC32 crc) throws IOException {
+        byte[] buffer = new byte[limit];
+        int length = 0;
+        while (length < limit) {
+            int count = istr.read(buffer, length, limit - length);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        crc.update(buffer, 0, length);
+        return length;
+    }
+}
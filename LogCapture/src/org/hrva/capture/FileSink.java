@@ -0,0 +1,160 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A CSV output which appends the reports of some message types to a
+ * file.
+ *
+ * <p>Each sink other than the feed appends to its own CSV file, named by
+ * <tt>reformat.sink.</tt><i>name</i>, with the columns named by
+ * <tt>reformat.columns.</tt><i>name</i>.  A file sink collects rows in
+ * memory and appends them in one piece when {@link #flush()} is called
+ * or enough rows have built up.  Appends to one file are serialized
+ * across all the sinks in the process, so rows from several logs being
+ * captured at once are never mixed together.  A new file gets a heading
+ * row.</p>
+ *
+ * <p>The pending rows can also be taken, and added to another sink for
+ * the same file; that's how {@link ParallelReformat} keeps the rows of
+ * its chunks in order.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     FileSink arrivals = new FileSink("arrivals", headings, new File("arrivals.csv"));
+ *     arrivals.writerow(report);
+ *     ...
+ *     arrivals.flush();
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class FileSink extends ReportSink {
+
+    /** A file sink appends its rows once this many characters are pending. */
+    static final int FLUSH_SIZE = 64 * 1024;
+
+    /** Locks for the sink files in use in this process, by absolute filename. */
+    static final Map<String, Object> file_locks = new HashMap<String, Object>();
+
+    /** The file. */
+    final File file;
+
+    /** Rows not yet appended to the file. */
+    final StringWriter pending;
+
+    /**
+     * Build a file sink.
+     *
+     * @param name The sink name
+     * @param headings CSV Headings
+     * @param file The file to append to
+     */
+    public FileSink(String name, String[] headings, File file) {
+        this(name, headings, file, VehicleReport.plan(headings));
+    }
+
+    /**
+     * Build a file sink which needs more columns parsed than it writes.
+     *
+     * @param name The sink name
+     * @param headings CSV Headings
+     * @param file The file to append to
+     * @param plan The columns to parse, including those of the headings
+     */
+    FileSink(String name, String[] headings, File file, int plan) {
+        super(name, headings, plan);
+        this.file = file;
+        pending = new StringWriter();
+        csvwtr = new CSVWriter(pending, headings);
+    }
+
+    /**
+     * Have enough rows built up to append them?
+     *
+     * @return true if flush should be called
+     */
+    @Override
+    boolean full() {
+        return pending.getBuffer().length() + csvwtr.used >= FLUSH_SIZE;
+    }
+
+    /**
+     * Take the pending rows, leaving none.
+     *
+     * @return The CSV rows
+     * @throws IOException
+     */
+    String take() throws IOException {
+        csvwtr.flush();
+        String rows = pending.toString();
+        pending.getBuffer().setLength(0);
+        return rows;
+    }
+
+    /**
+     * Add rows, taken from another sink, to the pending rows.
+     *
+     * @param rows The CSV rows
+     * @throws IOException
+     */
+    void append(String rows) throws IOException {
+        csvwtr.flush();
+        pending.write(rows);
+    }
+
+    /**
+     * Append the pending rows to the file, writing the heading if the
+     * file is new.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        csvwtr.flush();
+        if (pending.getBuffer().length() == 0) {
+            return;
+        }
+        synchronized (lock(file)) {
+            Writer wtr = new BufferedWriter(new FileWriter(file, true));
+            try {
+                if (file.length() == 0) {
+                    wtr.write(csvwtr.heading);
+                }
+                wtr.write(pending.toString());
+            } finally {
+                wtr.close();
+            }
+            pending.getBuffer().setLength(0);
+        }
+    }
+
+    /**
+     * Get the lock for a file, shared by every sink in this process.
+     *
+     * @param file The file
+     * @return The lock
+     */
+    static Object lock(File file) {
+        String path = file.getAbsolutePath();
+        synchronized (file_locks) {
+            Object lock = file_locks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                file_locks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+}
@@ -11,10 +11,16 @@ package org.hrva.capture;
 
 import java.io.*;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.kohsuke.args4j.Argument;
@@ -43,6 +49,20 @@ import org.kohsuke.args4j.Option;
  * java -cp LogTail/dist/LogTail.jar org.hrva.capture.LogTail -o extract.txt /path/to/some.log
  * java -cp LogTail/dist/LogTail.jar org.hrva.capture.CouchPush -f extract.txt 
  * </pre></code>
+ *
+ * <p>Several logs can be tailed at once.  Each log gets its own extract
+ * file; the log's base name is added to the extract filename.
+ * They share one history cache.</p>
+ * <code><pre>
+ * java -cp LogTail/dist/LogTail.jar org.hrva.capture.LogTail -o extract.txt /path/to/a.log /path/to/b.log
+ * </pre></code>
+ *
+ * <p>A log can also be followed.  The file is kept open and each
+ * new extract is handed to a {@link TailSink} as soon as the log grows.</p>
+ * <code><pre>
+ *     LogTail lt = new LogTail(config);
+ *     lt.follow( "/path/to/some.log", sink );
+ * </pre></code>
  * 
  * @author slott
  */
@@ -59,10 +79,32 @@ public class LogTail {
     @Option(name="-f", usage="Do an immediate feed push.")
     boolean immediate= false;
     
+    /** Follow option. */
+    @Option(name="-F", usage="Follow the log, writing extracts as it grows.")
+    boolean follow= false;
+    
     /** Verbose debugging. */
     @Option(name = "-v", usage = "Vebose logging")
     boolean verbose= false;
 
+    /** Set while {@link #follow(String, TailSink)} is running. */
+    volatile boolean following= false;
+
+    /** Set while {@link #drain(String, TailSink)} is running. */
+    volatile boolean draining= false;
+
+    /** Catch-up mode: never skip a backlog, drain it in chunks. */
+    boolean catch_up;
+
+    /** The "bytes behind" gauge: log bytes not yet extracted. */
+    volatile long bytes_behind= 0;
+
+    /** Reused for extracts too small to be worth mapping. */
+    ByteBuffer read_buffer= null;
+
+    /** Pushes the extracts with <tt>-i</tt>; opened by the first push, and kept for the run. */
+    CouchPush push= null;
+
     /** Command-line Arguments. */
     @Argument
     List<String> arguments = new ArrayList<String>();
@@ -110,6 +152,7 @@ public class LogTail {
     public LogTail( Properties global) {
         super();
         this.global= global;
+        catch_up= Boolean.parseBoolean(global.getProperty("logtail.catch_up", "false"));
     }
 
     /**
@@ -129,15 +172,265 @@ public class LogTail {
         CmdLineParser parser = new CmdLineParser(this);
         parser.parseArgument(args);
 
-        if (arguments.size() != 1) {
-            throw new CmdLineException("Only one log file can be tailed");
+        if (arguments.isEmpty()) {
+            throw new CmdLineException("Missing log file name");
+        }
+        try {
+            if (follow) {
+                follow_all();
+            } else {
+                drain_all();
+            }
+        } finally {
+            close_push();
+        }
+    }
+
+    /**
+     * Drain all of the command-line logs, on a pool sized to the cores.
+     *
+     * @throws IOException
+     */
+    void drain_all() throws IOException {
+        // Each log is tailed by its own LogTail.
+        int threads = Math.min(arguments.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (final String source : arguments) {
+                final String target = extract_name(source);
+                results.add(pool.submit(new Callable<Integer>() {
+
+                    public Integer call() throws IOException {
+                        return new LogTail(global).drain(source, new TailSink() {
+
+                            public void extract(String source, long sequence, ByteBuffer extract) throws IOException {
+                                String temp = write_extract(target, sequence, extract);
+                                if (immediate) {
+                                    push_feed(temp);
+                                }
+                            }
+                        });
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            logger.info("Interrupted tailing " + arguments);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Follow all of the command-line logs, each in its own thread.
+     *
+     * <p>A follower spends almost all of its time waiting for the log to
+     * grow, so these threads are not drawn from a bounded pool.</p>
+     */
+    void follow_all() {
+        List<Thread> followers = new ArrayList<Thread>();
+        final List<LogTail> tails = new ArrayList<LogTail>();
+        for (final String source : arguments) {
+            final String target = extract_name(source);
+            final LogTail tail = new LogTail(global);
+            tails.add(tail);
+            Thread follower = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        tail.follow(source, new TailSink() {
+
+                            public void extract(String source, long sequence, ByteBuffer extract) throws IOException {
+                                String temp = write_extract(target, sequence, extract);
+                                if (immediate) {
+                                    push_feed(temp);
+                                }
+                            }
+                        });
+                    } catch (InterruptedException ex) {
+                        logger.info("Interrupted following " + source);
+                    } catch (IOException ex) {
+                        logger.fatal("Follower Failed " + source, ex);
+                    }
+                }
+            }, "follow " + source);
+            follower.start();
+            followers.add(follower);
+        }
+        try {
+            for (Thread follower : followers) {
+                follower.join();
+            }
+        } catch (InterruptedException ex) {
+            for (LogTail tail : tails) {
+                tail.stop();
+            }
         }
-        for (String source : arguments) {
-            String temp = tail(source, extract_filename);
-            if (temp != null && immediate) {
-                push_feed(temp);
+    }
+
+    /**
+     * The extract filename for a given log.
+     *
+     * <p>With only one log, this is the <tt>-o</tt> filename. Otherwise,
+     * it's {@link #source_name(String, String)}.</p>
+     *
+     * @param source The log filename
+     * @return The extract filename for this log
+     */
+    String extract_name(String source) {
+        if (arguments.size() == 1) {
+            return extract_filename;
+        }
+        return source_name(extract_filename, source, arguments);
+    }
+
+    /**
+     * Make a filename specific to a given log by inserting the log's base
+     * name in front of the extension.
+     *
+     * <p>For example, <tt>hrtrtf.txt</tt> and <tt>/var/log/garage1.log</tt>
+     * becomes <tt>hrtrtf-garage1.txt</tt>.</p>
+     *
+     * @param filename A filename (or filename format)
+     * @param source The log filename
+     * @return A filename specific to the log
+     */
+    static String source_name(String filename, String source) {
+        return insert_tag(filename, base_name(source));
+    }
+
+    /**
+     * Make a filename specific to one of several logs.
+     *
+     * <p>This is {@link #source_name(String, String)}, unless another
+     * log has the same base name.  Then the name of the log's directory
+     * is added: <tt>a/hrtrtf.log</tt> and <tt>b/hrtrtf.log</tt> give
+     * <tt>hrtrtf-a-hrtrtf.txt</tt> and <tt>hrtrtf-b-hrtrtf.txt</tt>.  If
+     * that's still ambiguous, the log's position in the list is added
+     * instead.</p>
+     *
+     * @param filename A filename (or filename format)
+     * @param source The log filename
+     * @param sources All of the logs
+     * @return A filename specific to the log
+     */
+    static String source_name(String filename, String source, List<String> sources) {
+        return insert_tag(filename, source_tag(source, sources));
+    }
+
+    /**
+     * The tag which identifies one of several logs.
+     *
+     * @param source The log filename
+     * @param sources All of the logs
+     * @return The log's base name, qualified if it's ambiguous
+     */
+    static String source_tag(String source, List<String> sources) {
+        String base = base_name(source);
+        String qualified = directory_name(source) + "-" + base;
+        int same_base = 0, same_qualified = 0;
+        for (String other : sources) {
+            if (base_name(other).equals(base)) {
+                same_base += 1;
+                if ((directory_name(other) + "-" + base).equals(qualified)) {
+                    same_qualified += 1;
+                }
             }
         }
+        if (same_base < 2) {
+            return base;
+        }
+        if (same_qualified < 2) {
+            return qualified;
+        }
+        return base + "-" + (sources.indexOf(source) + 1);
+    }
+
+    /**
+     * The name of a log without its directory or extension.
+     *
+     * @param source The log filename
+     * @return The base name
+     */
+    static String base_name(String source) {
+        String base = new File(source).getName();
+        int dot = base.lastIndexOf('.');
+        if (dot > 0) {
+            base = base.substring(0, dot);
+        }
+        return base;
+    }
+
+    /**
+     * The name of the directory which holds a log.
+     *
+     * @param source The log filename
+     * @return The directory name
+     */
+    static String directory_name(String source) {
+        File parent = new File(source).getAbsoluteFile().getParentFile();
+        return parent == null || parent.getName().length() == 0 ? "root" : parent.getName();
+    }
+
+    /**
+     * Insert a tag in front of a filename's extension.
+     *
+     * @param filename A filename (or filename format)
+     * @param base The tag
+     * @return The tagged filename
+     */
+    static String insert_tag(String filename, String base) {
+        File file = new File(filename);
+        String name = file.getName();
+        int ext = name.lastIndexOf('.');
+        if (ext > 0) {
+            name = name.substring(0, ext) + "-" + base + name.substring(ext);
+        } else {
+            name = name + "-" + base;
+        }
+        return new File(file.getParentFile(), name).getPath();
+    }
+
+    /**
+     * Get the extract size limit from the <tt>logtail.file_size_limit</tt>
+     * property.
+     *
+     * <p>The value may have a suffix of <tt>k</tt> or <tt>m</tt>.</p>
+     *
+     * @return limit in bytes
+     */
+    int get_limit() {
+        String limit_str = global.getProperty("logtail.file_size_limit",
+                "1m"); // 1 * 1024 * 1024;
+        return (int) parse_size(limit_str);
+    }
+
+    /**
+     * Parse a size string with an optional <tt>k</tt> or <tt>m</tt> suffix.
+     *
+     * @param size_str A size like "1m", "64k" or "4096"
+     * @return size in bytes
+     */
+    static long parse_size(String size_str) {
+        long size;
+        if( size_str.endsWith("m") || size_str.endsWith("M") ) {
+            size= 1024L*1024L*Long.parseLong(size_str.substring(0,size_str.length()-1));
+        }
+        else if( size_str.endsWith("k") || size_str.endsWith("K") ) {
+            size= 1024L*Long.parseLong(size_str.substring(0,size_str.length()-1));
+        }
+        else{
+            size = Long.parseLong(size_str);
+        }
+        return size;
     }
 
     /**
@@ -156,96 +449,547 @@ public class LogTail {
      * @throws FileNotFoundException
      * @throws IOException
      */
-    public String tail(String source, String target) throws FileNotFoundException, IOException {
+    public String tail(String source, final String target) throws FileNotFoundException, IOException {
         // The resulting file name (or null if the log did not grow).
-        String temp_name = null;
+        final String[] temp_name = { null };
+        tail(source, new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) throws IOException {
+                temp_name[0] = write_extract(target, sequence, extract);
+            }
+        });
+        return temp_name[0];
+    }
+
+    /**
+     * Tail the given file if the size has changed, handing the
+     * new bytes to a sink.
+     *
+     * <p>The extract is not copied.  It's either a region of the log
+     * mapped into memory or the contents of a single reused direct
+     * buffer.  See {@link #read_region(FileChannel, long, int)}.</p>
+     *
+     * @param source The log filename to tail
+     * @param sink The TailSink which consumes the extract
+     * @return true if the file size changed; otherwise false
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public boolean tail(String source, TailSink sink) throws FileNotFoundException, IOException {
+        boolean changed = false;
 
         // Open our last-time-we-looked file.
         String cache_file_name = global.getProperty("logtail.tail_status_filename",
                 "logtail.history");
-        String limit_str = global.getProperty("logtail.file_size_limit",
-                "1m"); // 1 * 1024 * 1024;
-        int limit;
-        if( limit_str.endsWith("m") || limit_str.endsWith("M") ) {
-            limit= 1024*1024*Integer.parseInt(limit_str.substring(0,limit_str.length()-1));
-        }
-        else if( limit_str.endsWith("k") || limit_str.endsWith("K") ) {
-            limit= 1024*Integer.parseInt(limit_str.substring(0,limit_str.length()-1));
-        }
-        else{
-            limit = Integer.parseInt(limit_str);
-        }
+        int limit = get_limit();
 
-        Properties state = get_state(cache_file_name);
+        Checkpoint.Entry saved = Checkpoint.open(cache_file_name).get(source);
 
         // Find the previous size and sequence number
-        String prev_size_str = state.getProperty("size." + source, "0");
-        long prev_size = Long.parseLong(prev_size_str);
-        String seq_str = state.getProperty("seq." + source, "0");
-        long sequence = Long.parseLong(seq_str);
+        long prev_size = saved.position;
+        long sequence = saved.sequence;
 
+        Object[] tailing = { source };
+        logger.info(MessageFormat.format("Tailing {0}", tailing));
         Object[] details = {
-            source, target, seq_str, prev_size_str 
+            String.valueOf(sequence), String.valueOf(prev_size)
         };
-        logger.info(MessageFormat.format("Tailing {0} to {1}", details));
-        logger.info(MessageFormat.format("Count {2}, Bytes {3}", details));
+        logger.info(MessageFormat.format("Count {0}, Bytes {1}", details));
         sequence += 1;
 
+        // Has the log been rotated since we last looked?
+        File log_file = new File(source);
+        FileIdentity identity = saved.identity;
+        if (identity != null
+                && (!identity.same_file(log_file) || log_file.length() < prev_size)) {
+            // Finish the rotated segment before starting on the new log.
+            File segment = identity.find_rotated(log_file, prev_size);
+            if (segment != null) {
+                ByteBuffer extract = read_segment(segment, prev_size, limit);
+                boolean more = extract.remaining() == limit;
+                int complete = complete_lines(extract, true);
+                if (complete > 0) {
+                    Object[] rotated = { source, segment.getName(), prev_size };
+                    logger.info(MessageFormat.format("Finishing {0} from rotated {1} at {2}", rotated));
+                    extract.limit(extract.position() + complete);
+                    sink.extract(source, sequence, extract);
+                    long position = prev_size + complete;
+                    long rest = FileIdentity.is_compressed(segment)
+                            ? (more ? limit : 0) : segment.length() - position;
+                    bytes_behind = rest + log_file.length();
+                    update_state(cache_file_name, source, position, sequence, identity);
+                    return true;
+                }
+            } else {
+                logger.warn("Can't find the rotated segment of " + source);
+            }
+            if (!log_file.exists()) {
+                // No new log yet.  
+                bytes_behind = 0;
+                return false;
+            }
+            logger.info("Rotated " + source);
+            sequence = 0;
+            prev_size = 0;
+        }
+
         // Attempt to seek to the previous position
         long position = 0;
-        File log_to_tail = new File(source);
-        RandomAccessFile rdr = new RandomAccessFile(log_to_tail, "r");
+        FileChannel channel = new FileInputStream(log_file).getChannel();
         try {
-            long current_size = rdr.length();
+            long current_size = channel.size();
             if (current_size == prev_size) {
                 // Same size.  Nothing more to do here.
                 position = current_size;
             } else {
                 // Changed size.  Either grew or was truncated.
-                if (rdr.length() < prev_size) {
+                long start;
+                if (current_size < prev_size) {
                     // Got truncated.  Read from beginning.
                     sequence = 0;
                     prev_size= 0;
-                } else {
-                    // Got bigger.  Read from where we left off.
-                    rdr.seek(prev_size);
                 }
                 // Read to EOF or the limit.  
                 // No reason to get greedy.
                 int read_size;
-                if (current_size - prev_size > limit) {
+                if (current_size - prev_size > limit && catch_up) {
+                    // Lossless: take the next chunk; the rest waits.
                     read_size = limit;
-                    rdr.seek( current_size-limit );
+                    start = prev_size;
+                } else if (current_size - prev_size > limit) {
+                    // Skip ahead.  Include the byte before the skipped-to
+                    // position so a line which starts there isn't dropped.
+                    read_size = limit + 1;
+                    start = current_size - limit - 1;
                 } else {
                     read_size = (int) (current_size - prev_size);
+                    start = prev_size;
+                }
+                ByteBuffer extract = read_region(channel, start, read_size);
+                if (start != prev_size) {
+                    skip_partial_line(extract);
+                }
+                int complete = complete_lines(extract, read_size >= limit);
+                if (complete > 0) {
+                    position = start + extract.position() + complete;
+                    extract.limit(extract.position() + complete);
+                    sink.extract(source, sequence, extract);
+                    changed = true;
+                } else {
+                    // Only a partial line so far; wait for the rest.
+                    position = prev_size;
                 }
-                byte[] buffer = new byte[read_size];
-                rdr.read(buffer);
-                position = rdr.getFilePointer();
-
-                // Write temp file
-                Object[] args = { sequence };
-                temp_name = MessageFormat.format(target, args);
-
-                File extract = new File(temp_name);
-                OutputStream wtr = new FileOutputStream(extract);
-                wtr.write(buffer);
             }
+            bytes_behind = current_size - position;
         } finally {
-            rdr.close();
+            channel.close();
         }
 
         // Update our private last-time-we-looked file.
-        state.setProperty("size." + source, String.valueOf(position));
-        state.setProperty("seq." + source, String.valueOf(sequence));
-        save_state(cache_file_name, state);
+        update_state(cache_file_name, source, position, sequence, FileIdentity.of(log_file));
 
         Object[] details2 = {
-            source, target, seq_str, prev_size_str, 
-            String.valueOf(sequence), String.valueOf(position)
+            String.valueOf(sequence), String.valueOf(position),
+            String.valueOf(bytes_behind)
+        };
+        logger.info(MessageFormat.format("Count {0}, Bytes {1}, Behind {2}", details2));
+
+        return changed;
+    }
+
+    /**
+     * Tail the given file and, in catch-up mode, keep tailing until
+     * the backlog is drained.
+     *
+     * <p>Without catch-up mode, this is a single {@link #tail(String, TailSink)}.
+     * In catch-up mode, the backlog is handed to the sink in
+     * <tt>logtail.file_size_limit</tt> chunks, as fast as the sink can take
+     * them, but no faster than <tt>logtail.catch_up_rate</tt> bytes per
+     * second.  A rate of 0 (the default) means no ceiling.</p>
+     *
+     * <p>This stops early if {@link #stop()} is called.</p>
+     *
+     * @param source The log filename to tail
+     * @param sink The TailSink which consumes the extracts
+     * @return the number of extracts
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public int drain(String source, final TailSink sink) throws FileNotFoundException, IOException {
+        long rate = parse_size(global.getProperty("logtail.catch_up_rate", "0"));
+        final long[] total = { 0 };
+        TailSink counter = new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) throws IOException {
+                total[0] += extract.remaining();
+                sink.extract(source, sequence, extract);
+            }
         };
-        logger.info(MessageFormat.format("Count {4}, Bytes {5}", details2));
+        long started = System.currentTimeMillis();
+        int count = 0;
+        draining = true;
+        try {
+            while (draining && tail(source, counter)) {
+                count += 1;
+                if (!catch_up || bytes_behind == 0) {
+                    break;
+                }
+                if (rate > 0) {
+                    long due = started + total[0] * 1000 / rate;
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            draining = false;
+        }
+        if (count > 1) {
+            Object[] details = { source, count, total[0] };
+            logger.info(MessageFormat.format("Caught up {0}, {1} extracts, {2} bytes", details));
+        }
+        return count;
+    }
+
+    /**
+     * The number of bytes in the log which have not yet been extracted,
+     * as of the most recent tail.
+     *
+     * @return bytes behind
+     */
+    public long get_bytes_behind() {
+        return bytes_behind;
+    }
+
+    /**
+     * The number of bytes in an extract up to and including its last
+     * newline.
+     *
+     * <p>The partial line after the last newline is not part of the
+     * extract; the saved position stops in front of it, so it's carried into
+     * the next extract, once the rest of the line has been written.</p>
+     *
+     * <p>If a full-sized extract has no newline at all, the line is longer
+     * than the extract limit.  In that case, the whole extract is used,
+     * otherwise the tail could never advance.</p>
+     *
+     * @param extract The extract, from position to limit
+     * @param full true if the extract is as big as it's allowed to be
+     * @return the number of bytes of complete lines
+     */
+    static int complete_lines(ByteBuffer extract, boolean full) {
+        for (int i = extract.limit() - 1; i >= extract.position(); --i) {
+            if (extract.get(i) == '\n') {
+                return i + 1 - extract.position();
+            }
+        }
+        return full ? extract.remaining() : 0;
+    }
+
+    /**
+     * Skip the partial line at the start of an extract which doesn't
+     * start at a line boundary.
+     *
+     * <p>The extract's position is moved past the first newline.  If there's
+     * no newline, the extract is left alone.</p>
+     *
+     * @param extract The extract, from position to limit
+     */
+    static void skip_partial_line(ByteBuffer extract) {
+        for (int i = extract.position(); i < extract.limit(); ++i) {
+            if (extract.get(i) == '\n') {
+                extract.position(i + 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read a region of the log without allocating a new buffer.
+     *
+     * <p>A region of at least <tt>logtail.map_threshold</tt> bytes
+     * (default 256k) is mapped directly from the file.  A smaller region
+     * is read into a single direct buffer which is reused for each
+     * extract.  Short reads are retried until the region is complete or
+     * the end of the file is reached.</p>
+     *
+     * <p>The resulting buffer is only valid until the next read.</p>
+     *
+     * @param channel The open log
+     * @param start The file position of the region
+     * @param size The size of the region
+     * @return A buffer with the region's bytes between position and limit
+     * @throws IOException
+     */
+    ByteBuffer read_region(FileChannel channel, long start, int size) throws IOException {
+        long threshold = parse_size(global.getProperty("logtail.map_threshold", "256k"));
+        if (size >= threshold) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        ByteBuffer buffer = reuse_buffer(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read a region of a rotated segment of the log.
+     *
+     * <p>A compressed (<tt>.gz</tt>) segment is decompressed and
+     * the first <tt>start</tt> bytes are skipped.</p>
+     *
+     * @param segment The rotated segment
+     * @param start The position in the (decompressed) segment
+     * @param limit The maximum size of the region
+     * @return A buffer with the region's bytes between position and limit
+     * @throws IOException
+     */
+    ByteBuffer read_segment(File segment, long start, int limit) throws IOException {
+        if (!FileIdentity.is_compressed(segment)) {
+            FileChannel channel = new FileInputStream(segment).getChannel();
+            try {
+                int size = (int) Math.max(0, Math.min(limit, channel.size() - start));
+                return read_region(channel, start, size);
+            } finally {
+                channel.close();
+            }
+        }
+        InputStream istr = FileIdentity.open(segment);
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                long count = istr.skip(start - skipped);
+                if (count <= 0) {
+                    if (istr.read() < 0) {
+                        break;
+                    }
+                    count = 1;
+                }
+                skipped += count;
+            }
+            ByteBuffer buffer = reuse_buffer(limit);
+            ReadableByteChannel in = Channels.newChannel(istr);
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            istr.close();
+        }
+    }
+
+    /**
+     * Get the reused direct buffer, cleared and limited to the given size.
+     *
+     * @param size The size needed
+     * @return The read buffer
+     */
+    ByteBuffer reuse_buffer(int size) {
+        if (read_buffer == null || read_buffer.capacity() < size) {
+            read_buffer = ByteBuffer.allocateDirect(Math.max(size, get_limit()));
+        }
+        read_buffer.clear();
+        read_buffer.limit(size);
+        return read_buffer;
+    }
+
+    /**
+     * Follow the given file, handing each new extract to a sink as
+     * soon as the log grows.
+     *
+     * <p>The log is kept open.  A {@link WatchService} on the log's directory
+     * wakes this up when the log changes; the <tt>logtail.follow_poll_ms</tt>
+     * property (default 250) is a fallback poll interval for file systems
+     * which don't report changes promptly.</p>
+     *
+     * <p>The history cache is updated after each extract, so a follow
+     * can be interrupted and later resumed -- by follow or by tail --
+     * without losing or repeating data.</p>
+     *
+     * <p>This runs until {@link #stop()} is called or the thread
+     * is interrupted.</p>
+     *
+     * @param source The log filename to follow
+     * @param sink The TailSink which consumes each extract
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void follow(String source, TailSink sink) throws IOException, InterruptedException {
+        String cache_file_name = global.getProperty("logtail.tail_status_filename",
+                "logtail.history");
+        long poll = Long.parseLong(global.getProperty("logtail.follow_poll_ms", "250"));
+        int limit = get_limit();
+
+        Checkpoint.Entry saved = Checkpoint.open(cache_file_name).get(source);
+        long position = saved.position;
+        long sequence = saved.sequence;
+        FileIdentity identity = saved.identity;
+
+        Object[] details = { source, String.valueOf(sequence), String.valueOf(position) };
+        logger.info(MessageFormat.format("Following {0}, Count {1}, Bytes {2}", details));
+
+        File log_file = new File(source);
+        Path log_path = log_file.getAbsoluteFile().toPath();
+        WatchService watcher = log_path.getFileSystem().newWatchService();
+        FileChannel channel = null;
+        following = true;
+        try {
+            log_path.getParent().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            if (identity != null && log_file.exists() && !identity.same_file(log_file)) {
+                // Rotated while we weren't looking.
+                finish_rotated(source, identity, position, sequence, sink);
+                sequence = 0;
+                position = 0;
+            }
+            while (following) {
+                if (channel == null && Files.exists(log_path)) {
+                    channel = FileChannel.open(log_path, StandardOpenOption.READ);
+                    identity = FileIdentity.of(log_file);
+                }
+                if (channel != null) {
+                    long current_size = channel.size();
+                    if (current_size < position) {
+                        // Got truncated.  Finish the copy, then read from beginning.
+                        finish_rotated(source, identity, position, sequence, sink);
+                        sequence = 0;
+                        position = 0;
+                        identity = FileIdentity.of(log_file);
+                    }
+                    if (current_size > position) {
+                        int read_size = (int) Math.min(limit, current_size - position);
+                        ByteBuffer extract = read_region(channel, position, read_size);
+                        int complete = complete_lines(extract, read_size >= limit);
+                        if (complete > 0) {
+                            extract.limit(extract.position() + complete);
+                            position += complete;
+                            bytes_behind = current_size - position;
+                            sequence += 1;
+                            sink.extract(source, sequence, extract);
+
+                            if (identity.head_length < FileIdentity.HEAD_SIZE) {
+                                identity = FileIdentity.of(log_file);
+                            }
+                            update_state(cache_file_name, source, position, sequence, identity);
+                            // There may be more waiting; don't sleep.
+                            continue;
+                        }
+                        // Only a partial line so far; wait for the rest.
+                    }
+                }
+                WatchKey key = watcher.poll(poll, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                                && log_path.getFileName().equals(event.context())
+                                && channel != null
+                                && !identity.same_file(log_file)) {
+                            // Replaced by a new file.  Finish the renamed
+                            // file, then read from beginning.  The event for
+                            // the file already open, as when the log first
+                            // appears after the watch starts, is ignored.
+                            channel.close();
+                            channel = null;
+                            finish_rotated(source, identity, position, sequence, sink);
+                            sequence = 0;
+                            position = 0;
+                        }
+                    }
+                    key.reset();
+                }
+            }
+        } finally {
+            following = false;
+            if (channel != null) {
+                channel.close();
+            }
+            watcher.close();
+        }
+    }
+
+    /**
+     * Hand the rest of a rotated segment of the log to a sink.
+     *
+     * <p>The segment is found with {@link FileIdentity#find_rotated(File, long)}.
+     * Everything after the given position is extracted, in
+     * <tt>logtail.file_size_limit</tt> chunks.  The history cache is
+     * updated after each chunk.</p>
+     *
+     * @param source The log filename
+     * @param identity The identity of the log before it was rotated
+     * @param position The position reached in the rotated log
+     * @param sequence The sequence number of the last extract
+     * @param sink The TailSink which consumes each extract
+     * @throws IOException
+     */
+    void finish_rotated(String source, FileIdentity identity, long position, long sequence, TailSink sink) throws IOException {
+        String cache_file_name = global.getProperty("logtail.tail_status_filename",
+                "logtail.history");
+        int limit = get_limit();
+        File segment = identity.find_rotated(new File(source), position);
+        if (segment == null) {
+            logger.warn("Can't find the rotated segment of " + source);
+            return;
+        }
+        Object[] details = { source, segment.getName(), position };
+        logger.info(MessageFormat.format("Finishing {0} from rotated {1} at {2}", details));
+        while (true) {
+            ByteBuffer extract = read_segment(segment, position, limit);
+            int complete = complete_lines(extract, true);
+            if (complete == 0) {
+                break;
+            }
+            extract.limit(extract.position() + complete);
+            position += complete;
+            sequence += 1;
+            sink.extract(source, sequence, extract);
+            update_state(cache_file_name, source, position, sequence, identity);
+        }
+    }
 
+    /**
+     * Stop a {@link #follow(String, TailSink)} or {@link #drain(String, TailSink)}
+     * that's running in another thread.
+     */
+    public void stop() {
+        following = false;
+        draining = false;
+    }
+
+    /**
+     * Write an extract to a temp file.
+     *
+     * <p>The supplied target filename is a format string; <tt>{0}</tt>
+     * is the sequence number.</p>
+     *
+     * @param target A temporary filename into which to save the extract.
+     * @param sequence The sequence number of this extract
+     * @param extract The bytes of the extract
+     * @return temp filename
+     * @throws IOException
+     */
+    public String write_extract(String target, long sequence, ByteBuffer extract) throws IOException {
+        Object[] args = { sequence };
+        String temp_name = MessageFormat.format(target, args);
+        FileOutputStream wtr = new FileOutputStream(new File(temp_name));
+        try {
+            FileChannel out = wtr.getChannel();
+            ByteBuffer data = extract.duplicate();
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+        } finally {
+            wtr.close();
+        }
         return temp_name;
     }
 
@@ -253,50 +997,79 @@ public class LogTail {
      * Push the given file to the database server. This essentially runs the
      * CouchPush application.
      *
+     * <p>The CouchPush, and its session's pooled connections, are
+     * reused from one push to the next until {@link #close_push()}.  The
+     * logs' threads take turns pushing.</p>
+     *
      * @param filename
      * @throws MalformedURLException
      * @throws IOException
      */
-    public void push_feed(String filename) throws MalformedURLException, IOException {
+    public synchronized void push_feed(String filename) throws MalformedURLException, IOException {
         File attachment= new File(filename);
-        CouchPush cp = new CouchPush(global);
-        cp.open();
-        cp.push_feed(attachment);
+        if (push == null) {
+            push = new CouchPush(global);
+        }
+        push.open();
+        push.push_feed(attachment);
+    }
+
+    /**
+     * Close the CouchPush used by {@link #push_feed(String)}, if there
+     * is one, with its session and connections.
+     */
+    public synchronized void close_push() {
+        if (push != null) {
+            push.close();
+            push = null;
+        }
     }
 
     /**
      * Get the saved file size state.
      *
-     * @param name Properties file into which the file sizes were saved.
+     * <p>This is a Properties view of the {@link Checkpoint}, with
+     * <tt>size.</tt>, <tt>seq.</tt> and <tt>id.</tt> keys for each log.</p>
+     *
+     * @param name History file into which the file sizes were saved.
      * @return Properties object with saved file sizes.
      */
     public Properties get_state(String name) {
-        Properties state = new Properties();
-        File cache_file = new File(name);
-        if (cache_file.exists()) {
-            InputStream istr;
-            try {
-                istr = new FileInputStream(cache_file);
-                state.load(istr);
-            } catch (FileNotFoundException ex) {
-                logger.warn("No history "+name, ex);
-            } catch (java.io.IOException ex) {
-                logger.warn("Problems with history "+name, ex);
-            }
-        }
-        return state;
+        return Checkpoint.open(name).to_properties();
     }
 
     /**
      * Save the file size for next time we're executed.
      *
-     * @param name Properties file into which the file sizes are saved.
+     * <p>The <tt>size.</tt>, <tt>seq.</tt> and <tt>id.</tt> keys
+     * are committed to the {@link Checkpoint}.</p>
+     *
+     * @param name History file into which the file sizes are saved.
      * @param state Properties object to persist.
      * @throws FileNotFoundException
      * @throws IOException
      */
     public void save_state(String name, Properties state) throws FileNotFoundException, IOException {
-        OutputStream ostr = new FileOutputStream(name);
-        state.store(ostr, "LogTail Cache");
+        Checkpoint history = Checkpoint.open(name);
+        history.put_properties(state);
+        history.commit();
+    }
+
+    /**
+     * Update the saved size and sequence of one log.
+     *
+     * <p>The {@link Checkpoint} is shared by all the logs tailed by
+     * this process; concurrent updates are written together.</p>
+     *
+     * @param name History file into which the file sizes are saved.
+     * @param source The log filename
+     * @param position The log's new size
+     * @param sequence The log's new sequence number
+     * @param identity The identity of the file the position refers to
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    void update_state(String name, String source, long position, long sequence, FileIdentity identity) throws FileNotFoundException, IOException {
+        Checkpoint.open(name).update(source, position, sequence, identity);
     }
 }
@@ -0,0 +1,47 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+/**
+ * Parses the words of one message type into a VehicleReport.
+ *
+ * <p>A MessageParser is registered with a {@link MessageRegistry}.
+ * By the time it's called, {@link Reformat} has found the words of
+ * the line and checked their number.  The parser uses the Reformat's
+ * word offsets and helpers, and fills in only the columns the Reformat
+ * wants.  The helpers note any bad value in the Reformat; the parser
+ * doesn't need to check.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     MessageParser logon = new MessageParser() {
+ *         public int parse(Reformat reformat, CharSequence line, VehicleReport row) {
+ *             row.type = VehicleReport.OTHER;
+ *             reformat.parse_common(line, row);
+ *             ...
+ *             return Reformat.OK;
+ *         }
+ *     };
+ * </pre></code>
+ *
+ * @author slott
+ */
+public interface MessageParser {
+
+    /**
+     * Parse a line into a VehicleReport.
+     *
+     * @param reformat The Reformat, which has found the words of the line
+     * @param line The line
+     * @param row The VehicleReport to fill in
+     * @return Reformat.OK, Reformat.FILTERED, or the reason the line is invalid
+     */
+    int parse(Reformat reformat, CharSequence line, VehicleReport row);
+}
@@ -0,0 +1,394 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * The message types {@link Reformat} accepts, found by the text of the
+ * message type word of a line, each with its parser and its sink.
+ *
+ * <p>Most lines of the GPS log are message types nobody wants.  Reformat
+ * finds the fifth word of each line and looks it up here before it
+ * splits the rest of the line.  The lookup is a hash of the word's
+ * characters into an open-addressed table, so it costs the same however
+ * many types are registered, and no String is built for the word.</p>
+ *
+ * <p>A message type may also have a qualifier: a word which must start
+ * with a given text.  Several messages can share a message type word
+ * with different qualifiers; the first whose qualifier matches is used.
+ * MT_TIMEPOINTCROSSING with <tt>Arrival</tt> as its seventh word is one
+ * message, and with <tt>Dwell</tt> is another.  A line which matches
+ * none of the qualifiers is filtered without splitting the rest
+ * of it.</p>
+ *
+ * <p>Each message names a sink, and its reports are written there.
+ * The sink named <tt>feed</tt> is the CSV feed; others are CSV files.
+ * The sinks are numbered in the order they're first named, with
+ * the feed as sink 0.</p>
+ *
+ * <p>The routes come from the <tt>reformat.route.</tt><i>key</i>
+ * properties, where the key is a message type word, with a qualifier
+ * if it has one.
+ * The value is a sink name, or <tt>none</tt> to drop the message.</p>
+ * <code><pre>
+ * reformat.route.MT_TIMEPOINTCROSSING.Arrival=arrivals
+ * reformat.route.MT_TIMEPOINTCROSSING.Dwell=dwells
+ * reformat.route.MT_OPERATORLOGON=logons
+ * </pre></code>
+ * <p>MT_LOCATION and MT_TIMEPOINTCROSSING.Arrival go to the feed unless
+ * routed elsewhere; MT_TIMEPOINTCROSSING.Dwell is dropped unless routed.
+ * Any other message type which is routed is captured as an
+ * {@link VehicleReport#OTHER} report.</p>
+ *
+ * <p>Register all the types before reformatting; the registry isn't
+ * changed while it's in use, so lookups aren't synchronized.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     MessageRegistry messages = MessageRegistry.configure(global);
+ *     messages.register( new MessageRegistry.Message("MT_LOCATION2", -1, null, 13, MessageRegistry.LOCATION, "feed") );
+ *     reformat.messages = messages;
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class MessageRegistry {
+
+    /** The sink which is the CSV feed. */
+    public static final String FEED = "feed";
+
+    /** The route which drops a message. */
+    public static final String NONE = "none";
+
+    /** Parses MT_LOCATION. */
+    public static final MessageParser LOCATION = new MessageParser() {
+        public int parse(Reformat reformat, CharSequence line, VehicleReport row) {
+            row.type = VehicleReport.LOCATION;
+            reformat.parse_common(line, row);
+            reformat.parse_location(line, 5, row);
+            return Reformat.OK;
+        }
+    };
+
+    /** Parses MT_TIMEPOINTCROSSING, with either Arrival or Dwell. */
+    public static final MessageParser CROSSING = new MessageParser() {
+        public int parse(Reformat reformat, CharSequence line, VehicleReport row) {
+            row.type = reformat.word_is(line, 6, "Arrival") ? VehicleReport.ARRIVAL : VehicleReport.DWELL;
+            reformat.parse_common(line, row);
+            reformat.parse_crossing(line, row);
+            reformat.parse_location(line, 13, row);
+            return Reformat.OK;
+        }
+    };
+
+    /** Parses any other message type: the common words, the type, and the rest of the line. */
+    public static final MessageParser OTHER = new MessageParser() {
+        public int parse(Reformat reformat, CharSequence line, VehicleReport row) {
+            row.type = VehicleReport.OTHER;
+            reformat.parse_common(line, row);
+            reformat.parse_other(line, row);
+            return Reformat.OK;
+        }
+    };
+
+    /**
+     * One accepted message type.
+     */
+    public static class Message {
+
+        /** The text of the message type word, for example MT_LOCATION. */
+        public final String name;
+        /** The word number of the qualifier, or -1 for none. */
+        public final int qualifier_word;
+        /** The text the qualifier word must start with, or null for none. */
+        public final String qualifier;
+        /** The number of words in a valid line, or -1 for any number. */
+        public final int words;
+        /** The parser. */
+        public final MessageParser parser;
+        /** The name of the sink its reports go to. */
+        public final String sink;
+        /** The hash of the name. */
+        final int hash;
+        /** The number of the sink, set when it's registered. */
+        int route;
+        /** The next message with the same name and a different qualifier. */
+        Message next;
+
+        /**
+         * Build a Message.
+         *
+         * @param name The text of the message type word
+         * @param qualifier_word The word number of the qualifier, or -1
+         * @param qualifier The text the qualifier must start with, or null
+         * @param words The number of words in a valid line, or -1
+         * @param parser The parser
+         * @param sink The name of the sink
+         */
+        public Message(String name, int qualifier_word, String qualifier, int words,
+                MessageParser parser, String sink) {
+            super();
+            this.name = name;
+            this.qualifier_word = qualifier_word;
+            this.qualifier = qualifier;
+            this.words = words;
+            this.parser = parser;
+            this.sink = sink;
+            this.hash = hash(name, 0, name.length());
+        }
+
+        /**
+         * The route key: the name, and the qualifier if there is one.
+         *
+         * @return key, for example MT_TIMEPOINTCROSSING.Arrival
+         */
+        public String key() {
+            return qualifier == null ? name : name + "." + qualifier;
+        }
+
+        /**
+         * A copy of this message going to another sink.
+         *
+         * @param sink The name of the sink
+         * @return Message
+         */
+        public Message to(String sink) {
+            return new Message(name, qualifier_word, qualifier, words, parser, sink);
+        }
+    }
+
+    /** The messages, in the order they were registered. */
+    final List<Message> messages = new ArrayList<Message>();
+
+    /** The first message with each name, by hash; the length is a power of two. */
+    Message[] table = new Message[16];
+
+    /** The number of message type words in the table. */
+    int count = 0;
+
+    /** The sink names, by number. */
+    final List<String> sinks = new ArrayList<String>();
+
+    /**
+     * Build an empty registry, with only the feed sink.
+     */
+    public MessageRegistry() {
+        super();
+        sinks.add(FEED);
+    }
+
+    /**
+     * Build the registry of the types Reformat has always accepted:
+     * MT_LOCATION, and MT_TIMEPOINTCROSSING with Arrival, both going to
+     * the feed.
+     *
+     * @return MessageRegistry
+     */
+    public static MessageRegistry standard() {
+        MessageRegistry registry = new MessageRegistry();
+        registry.register(new Message("MT_LOCATION", -1, null, 13, LOCATION, FEED));
+        registry.register(new Message("MT_TIMEPOINTCROSSING", 6, "Arrival", 21, CROSSING, FEED));
+        return registry;
+    }
+
+    /**
+     * Build the standard registry, changed by the
+     * <tt>reformat.route.</tt><i>key</i> properties.
+     *
+     * @param global The hrtail.properties file
+     * @return MessageRegistry
+     */
+    public static MessageRegistry configure(Properties global) {
+        MessageRegistry registry = standard();
+        Message dwell = new Message("MT_TIMEPOINTCROSSING", 6, "Dwell", 21, CROSSING, NONE);
+        String prefix = "reformat.route.";
+        for (String property : new TreeSet<String>(global.stringPropertyNames())) {
+            if (!property.startsWith(prefix)) {
+                continue;
+            }
+            String key = property.substring(prefix.length());
+            String sink = global.getProperty(property).trim();
+            Message message = registry.get(key);
+            if (message == null && key.equals(dwell.key())) {
+                message = dwell;
+            } else if (message == null) {
+                message = new Message(key, -1, null, -1, OTHER, sink);
+            }
+            if (sink.equals(NONE)) {
+                registry.unregister(key);
+            } else {
+                registry.register(message.to(sink));
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Get the number of a sink, numbering it if it's new.
+     *
+     * @param sink The name of the sink
+     * @return The number of the sink
+     */
+    int route(String sink) {
+        int route = sinks.indexOf(sink);
+        if (route < 0) {
+            route = sinks.size();
+            sinks.add(sink);
+        }
+        return route;
+    }
+
+    /**
+     * Add a message type, replacing any message with the same key.
+     *
+     * @param message The message type
+     */
+    public void register(Message message) {
+        message.route = route(message.sink);
+        int i = index_of(message.key());
+        if (i < 0) {
+            messages.add(message);
+        } else {
+            messages.set(i, message);
+        }
+        rebuild();
+    }
+
+    /**
+     * Remove the message type with a key.
+     *
+     * @param key The key, for example MT_TIMEPOINTCROSSING.Arrival
+     */
+    public void unregister(String key) {
+        int i = index_of(key);
+        if (i >= 0) {
+            messages.remove(i);
+            rebuild();
+        }
+    }
+
+    /**
+     * Find the position of the message with a key in messages.
+     *
+     * @param key The key
+     * @return The position, or -1
+     */
+    int index_of(String key) {
+        for (int i = 0; i != messages.size(); ++i) {
+            if (messages.get(i).key().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuild the table from the messages.  Messages with the same name
+     * are chained in the order they were registered.
+     */
+    void rebuild() {
+        int size = 16;
+        while (size < 2 * messages.size()) {
+            size *= 2;
+        }
+        table = new Message[size];
+        count = 0;
+        int mask = size - 1;
+        for (Message message : messages) {
+            message.next = null;
+            int i = spread(message.hash) & mask;
+            while (table[i] != null && !table[i].name.equals(message.name)) {
+                i = (i + 1) & mask;
+            }
+            if (table[i] == null) {
+                table[i] = message;
+                count += 1;
+            } else {
+                Message last = table[i];
+                while (last.next != null) {
+                    last = last.next;
+                }
+                last.next = message;
+            }
+        }
+    }
+
+    /**
+     * Get the message with a key.
+     *
+     * @param key The key, for example MT_TIMEPOINTCROSSING.Arrival
+     * @return Message, or null
+     */
+    public Message get(String key) {
+        int dot = key.indexOf('.');
+        String name = dot < 0 ? key : key.substring(0, dot);
+        for (Message m = find(name, 0, name.length()); m != null; m = m.next) {
+            if (m.key().equals(key)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first message type whose name is the text between start
+     * and end.  Others with the same name, and different qualifiers,
+     * follow it.
+     *
+     * @param line The line
+     * @param start The start of the message type word
+     * @param end The end of the message type word
+     * @return Message, or null if the type isn't accepted
+     */
+    public Message find(CharSequence line, int start, int end) {
+        int hash = hash(line, start, end);
+        int length = end - start;
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; table[i] != null; i = (i + 1) & mask) {
+            Message message = table[i];
+            if (message.hash == hash && message.name.length() == length
+                    && Reformat.region_matches(line, start, message.name)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The hash of the text between start and end; the same as
+     * <tt>String.hashCode()</tt>.
+     *
+     * @param text The text
+     * @param start The start
+     * @param end The end
+     * @return hash
+     */
+    static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Mix the high bits of a hash into the low bits used for the table.
+     *
+     * @param hash The hash
+     * @return The mixed hash
+     */
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reformats a large file on all cores.
+ *
+ * <p>The file is split into chunks of about <tt>reformat.chunk_size</tt>
+ * bytes, each ending at a line boundary.  The chunks are mapped and
+ * reformatted on a ForkJoinPool of <tt>reformat.threads</tt> threads.
+ * Each chunk has its own worker {@link Reformat}, which shares the
+ * message registry, plan and sinks' configuration of the given one
+ * rather than parsing the properties again.  The CSV output of each
+ * chunk is written in the original order, and so are the rows for each
+ * of the other sinks; rejected lines are counted in the given Reformat's
+ * {@link Rejections}.  Only a bounded batch of chunks, two per thread,
+ * is in progress at once, so memory use doesn't grow with the file.</p>
+ *
+ * <p>A {@link RollingSink} picks the segment for each row, which the
+ * chunks' text can't be split by, so with one the file is reformatted
+ * on one thread.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     ParallelReformat parallel = new ParallelReformat(reformat);
+ *     try {
+ *         parallel.reformat(new File("archive.log"), wtr);
+ *     } finally {
+ *         parallel.shutdown();
+ *     }
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class ParallelReformat {
+
+    /** The Reformat which writes the heading and supplies the options. */
+    final Reformat reformat;
+
+    /** The threads. */
+    final ForkJoinPool pool;
+
+    /** The approximate size of each chunk. */
+    final int chunk_size;
+
+    /** The number of chunks in progress at once. */
+    final int batch;
+
+    /**
+     * Build the ParallelReformat instance.
+     *
+     * @param reformat The Reformat whose properties and year are used
+     */
+    public ParallelReformat(Reformat reformat) {
+        super();
+        this.reformat = reformat;
+        int threads = Integer.parseInt(reformat.global.getProperty("reformat.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        chunk_size = (int) LogTail.parse_size(reformat.global.getProperty("reformat.chunk_size", "4m"));
+        pool = new ForkJoinPool(threads);
+        batch = 2 * threads;
+    }
+
+    /**
+     * Reformat a file to append to a writer.
+     *
+     * @param source The input file
+     * @param target Writer for the Output file
+     * @throws IOException
+     */
+    public void reformat(File source, Writer target) throws IOException {
+        if (reformat.roll != null) {
+            reformat.reformat(new FileReader(source), target);
+            return;
+        }
+        reformat.start(target);
+        // The heading, if any, goes ahead of the chunks' rows.
+        reformat.sinks[0].csvwtr.write_buffer();
+        FileInputStream istr = new FileInputStream(source);
+        try {
+            FileChannel channel = istr.getChannel();
+            long size = channel.size();
+            Deque<Future<String[]>> pending = new ArrayDeque<Future<String[]>>();
+            long position = 0;
+            while (position < size) {
+                long end = chunk_end(channel, position, size);
+                pending.add(pool.submit(new Chunk(channel, position, end)));
+                position = end;
+                if (pending.size() >= batch) {
+                    write(pending.removeFirst(), target);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst(), target);
+            }
+        } finally {
+            istr.close();
+        }
+        reformat.finish();
+    }
+
+    /**
+     * Let the threads go.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Find the end of the chunk which starts at position: the first line
+     * boundary at least chunk_size bytes later, or the end of the file.
+     *
+     * @param channel The input file
+     * @param position The start of the chunk
+     * @param size The size of the file
+     * @return The offset just after the chunk's last newline
+     * @throws IOException
+     */
+    long chunk_end(FileChannel channel, long position, long size) throws IOException {
+        long end = position + chunk_size;
+        ByteBuffer scan = ByteBuffer.allocate(4096);
+        while (end < size) {
+            scan.clear();
+            int count = channel.read(scan, end);
+            if (count <= 0) {
+                break;
+            }
+            for (int i = 0; i != count; ++i) {
+                if (scan.get(i) == '\n') {
+                    return end + i + 1;
+                }
+            }
+            end += count;
+        }
+        return size;
+    }
+
+    /**
+     * Wait for a chunk and write its output: the feed to the target, and
+     * the other sinks' rows to the Reformat's sinks.
+     *
+     * @param chunk The chunk's result, the rows for each sink
+     * @param target Writer for the Output file
+     * @throws IOException
+     */
+    void write(Future<String[]> chunk, Writer target) throws IOException {
+        try {
+            String[] rows = chunk.get();
+            target.write(rows[0]);
+            for (int route = 1; route < rows.length; ++route) {
+                FileSink sink = reformat.files[route];
+                sink.append(rows[route]);
+                if (sink.full()) {
+                    sink.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reformatting");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Reformat one chunk of the file.
+     */
+    class Chunk implements Callable<String[]> {
+
+        final FileChannel channel;
+        final long start;
+        final long end;
+        final Reformat worker;
+
+        /**
+         * Build a Chunk.
+         *
+         * @param channel The input file
+         * @param start The offset of the chunk's first line
+         * @param end The offset just after the chunk's last line
+         */
+        Chunk(FileChannel channel, long start, long end) {
+            super();
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.worker = new Reformat(reformat);
+        }
+
+        /**
+         * Map and reformat the chunk.
+         *
+         * @return The CSV rows for each sink, by number
+         * @throws IOException
+         */
+        public String[] call() throws IOException {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            StringWriter rows = new StringWriter((int) (end - start) / 2);
+            worker.reformat(data, rows);
+            String[] result = new String[worker.sinks.length];
+            result[0] = rows.toString();
+            for (int route = 1; route < result.length; ++route) {
+                result[route] = worker.files[route].take();
+            }
+            return result;
+        }
+    }
+}
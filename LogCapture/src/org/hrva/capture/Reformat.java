@@ -11,10 +11,10 @@ package org.hrva.capture;
 
 import java.io.*;
 import java.net.MalformedURLException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.kohsuke.args4j.Argument;
@@ -83,6 +83,9 @@ public class Reformat {
     /** Output file name. */
     @Option(name = "-o", usage = "Output file name.")
     String extract_filename = "hrtrtf.csv";
+    /** Parallel option. */
+    @Option(name = "-p", usage = "Parallel: reformat each file in chunks on all cores.")
+    boolean parallel= false;
     /** Verbose debugging. */
     @Option(name = "-v", usage = "Vebose logging")
     boolean verbose= false;
@@ -91,32 +94,88 @@ public class Reformat {
     List<String> arguments = new ArrayList<String>();
     
 
-    /** CSV Headings. */
-    String[] headings = {
-        "Date", "Time", "Vehicle", "Lat", "Lon", "Location Valid/Invalid",
-        "Adherence", "Adherence Valid/Invalid", "Route", "Direction", "Stop"
-    };
+    /** Default CSV Headings. */
+    static final String DEFAULT_COLUMNS = "Date,Time,Vehicle,Lat,Lon,Location Valid/Invalid,"
+            + "Adherence,Adherence Valid/Invalid,Route,Direction,Stop";
+
+    /** CSV Headings, from <tt>reformat.columns</tt>. */
+    String[] headings;
+
+    /** 
+     * The plan: the columns to parse from each line.  Only the columns
+     * in the sinks' headings are written, so no others are parsed or
+     * validated.
+     */
+    int plan;
+
+    /** The plan for the line being checked. */
+    int wanted;
+
+    /** The accepted message types, their parsers and their sinks. */
+    MessageRegistry messages;
+
+    /** The message type of the line being checked. */
+    MessageRegistry.Message message;
+
+    /** The number of words of the line being checked. */
+    int words;
+
+    /** The sinks, by number; the feed is sink 0. */
+    ReportSink[] sinks;
+
+    /** The same sinks, other than the feed, which append to files; files[0] is null. */
+    FileSink[] files;
+
+    /**
+     * The feed's segment files, from the <tt>reformat.roll.</tt>
+     * properties, or null to write the feed only to the target.
+     */
+    RollingSink roll;
+
+    /** Append the rows of file sinks to their files as they build up? */
+    boolean flush_sinks = true;
     
     /** Default year used to fill in incomplete dates. */
     Calendar now;
     
+    /** The VehicleReport reused for each line. */
+    final VehicleReport report = new VehicleReport();
+    
     /** Is a CSV header row required?  Only if the file is new. */
     boolean include_header= true;
 
     /** Logger. */
     final Log  logger = LogFactory.getLog(Reformat.class);
 
+    /** Status codes from {@link #check(CharSequence, VehicleReport)}. */
+    public static final int OK = 0, FILTERED = 1, TOO_FEW_WORDS = 2, UNKNOWN_TYPE = 3,
+            BAD_LABEL = 4, BAD_LAT_LON = 5, BAD_DATE = 6, BAD_TIME = 7, BAD_NUMBER = 8;
+
+    /** Status code descriptions, by status code. */
+    public static final String[] REASONS = {
+        "ok", "filtered", "too few words", "unknown message type", "bad label",
+        "bad lat/lon", "bad date", "bad time", "bad number"
+    };
+
+    /** Counts of rejected lines, by reason.  Shared by parallel workers. */
+    Rejections rejections;
+
+    /** The status of the line being checked: OK, or the first reason to reject it. */
+    int error = OK;
+
     /**
      * This row is invalid.
+     * 
+     * <p>Bad lines are expected, so this doesn't capture a stack trace.</p>
      */
     class InvalidRow extends Exception {
 
         public InvalidRow() {
-            super();
+            super(null, null, false, false);
         }
 
         public InvalidRow(String message) {
-            super(message);
+            super(message, null, false, false);
         }
     };
 
@@ -162,6 +221,41 @@ public class Reformat {
         this.global= global;
         // Might be overridden or updated for testability purposes.
         now = Calendar.getInstance();
+        rejections = new Rejections(Long.parseLong(global.getProperty("reformat.reject_log_ms", "10000")));
+        headings = global.getProperty("reformat.columns", DEFAULT_COLUMNS).trim().split("\\s*,\\s*");
+        plan = VehicleReport.plan(headings);
+        messages = MessageRegistry.configure(global);
+        roll = RollingSink.configure(global, headings);
+    }
+
+    /**
+     * Build a worker which shares a started Reformat's configuration.
+     *
+     * <p>The properties, headings, message registry and rejection counts
+     * are shared, not configured again.  The worker's sinks are like the
+     * parent's, but hold their rows until they're taken, and its feed
+     * goes only to the target.  {@link ParallelReformat} uses one for
+     * each chunk.</p>
+     *
+     * @param parent The Reformat, after {@link #start(Writer)}
+     */
+    Reformat(Reformat parent) {
+        super();
+        this.global= parent.global;
+        now = (Calendar) parent.now.clone();
+        rejections = parent.rejections;
+        headings = parent.headings;
+        plan = parent.plan;
+        messages = parent.messages;
+        include_header = false;
+        flush_sinks = false;
+        sinks = new ReportSink[parent.sinks.length];
+        files = new FileSink[parent.files.length];
+        for (int route = 1; route != sinks.length; ++route) {
+            FileSink sink = parent.files[route];
+            files[route] = new FileSink(sink.name, sink.headings, sink.file, sink.plan);
+            sinks[route] = files[route];
+        }
     }
 
     /**
@@ -170,6 +264,14 @@ public class Reformat {
      * <p>Each file in the command-line arguments is opened, read, reformatted
      * and written to the output CSV file.
      * </p>
+     * 
+     * <p>With the <tt>-p</tt> option, each file is reformatted in chunks
+     * on all cores by a {@link ParallelReformat}.
+     * </p>
+     * 
+     * <p>With <tt>reformat.roll.directory</tt>, the feed goes to the
+     * {@link RollingSink} segments instead of the output file.
+     * </p>
      *
      * @param args the command line arguments
      * @throws CmdLineException
@@ -182,19 +284,35 @@ public class Reformat {
 
         File target = new File(extract_filename);
         include_header= target.length() == 0;
-        Writer wtr = new FileWriter(target, true);
+        Writer wtr = roll == null ? new FileWriter(target, true) : null;
+        ParallelReformat chunks= parallel ? new ParallelReformat(this) : null;
         try {
             for (String filename : arguments) {
                 Object[] details = { filename, extract_filename };
                 logger.info( MessageFormat.format("Reformatting {0} to {1}",details));
 
                 File source = new File(filename);
-                Reader rdr= new FileReader(source);
-                reformat(rdr, wtr);
-                rdr.close();
+                if (parallel) {
+                    chunks.reformat(source, wtr);
+                } else {
+                    Reader rdr= new FileReader(source);
+                    reformat(rdr, wtr);
+                    rdr.close();
+                }
             }
         } finally {
-            wtr.close();
+            if (wtr != null) {
+                wtr.close();
+            }
+            if (roll != null) {
+                roll.close();
+            }
+            if (parallel) {
+                chunks.shutdown();
+            }
+        }
+        if (rejections.total() != 0) {
+            logger.info("Rejected " + rejections);
         }
     }
 
@@ -213,12 +331,7 @@ public class Reformat {
      * @throws IOException
      */
     public void reformat(Reader source, Writer target) throws IOException {
-        CSVWriter csvwtr = new CSVWriter(target, headings);
-        // Only needed once!
-        if( include_header ) {
-            csvwtr.writeheading();
-            include_header= false;
-        }
+        start(target);
 
         // Note that the input file may be broken at a bad byte boundary...
         // Open input for reading and hope for the test
@@ -226,23 +339,295 @@ public class Reformat {
         try {
             String line = rdr.readLine();
             while (line != null) {
-                try {
-                    Map<String, String> csv;
-                    csv = extract_fields(line);
-                    if (csv == null) {
-                        // filtered
-                    } else {
-                        csvwtr.writerow(csv);
-                    }
-                } catch (InvalidRow ex) {
-                    logger.warn("Invalid '" + line + "'");
-                }
+                reformat_line(line);
                 line = rdr.readLine();
             }
 
         } finally {
             rdr.close();
         }
+        finish();
+    }
+
+    /**
+     * Reformat an extract held in memory to append to a writer.
+     * 
+     * <p>
+     * This is the in-memory form of {@link #reformat(Reader, Writer)},
+     * used to pass a {@link LogTail} extract straight through without
+     * writing it to a file and reading it back.  The log is ASCII, so each
+     * byte is one character; the lines are parsed in place through a
+     * {@link ByteLine} view, and only the values which are kept become
+     * Strings.  The buffer's position is not changed.
+     * </p>
+     * 
+     * @param source The bytes of the extract, from position to limit.
+     * @param target Writer for the Output.
+     * @throws IOException
+     */
+    public void reformat(ByteBuffer source, Writer target) throws IOException {
+        start(target);
+        ByteBuffer data = source.duplicate();
+        ByteLine line = new ByteLine();
+        int start = data.position();
+        int limit = data.limit();
+        while (start < limit) {
+            int end = start;
+            while (end < limit && data.get(end) != '\n') {
+                end += 1;
+            }
+            int length = end - start;
+            if (length > 0 && data.get(end - 1) == '\r') {
+                length -= 1;
+            }
+            reformat_line(line.set(data, start, length));
+            start = end + 1;
+        }
+        finish();
+    }
+
+    /**
+     * Reformat an extract held in a byte array to append to a writer.
+     * 
+     * @param source The bytes of the extract.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     * @param target Writer for the Output.
+     * @throws IOException
+     */
+    public void reformat(byte[] source, int offset, int length, Writer target) throws IOException {
+        reformat(ByteBuffer.wrap(source, offset, length), target);
+    }
+
+    /**
+     * Build the sinks, with the feed writing to a target, and write the
+     * feed's heading if it's needed.  Compile the plan for the columns
+     * of all the sinks.
+     * 
+     * @param target Writer for the Output, or null if the feed only
+     *     goes to the {@link RollingSink}.
+     * @throws IOException
+     */
+    void start(Writer target) throws IOException {
+        List<String> names = messages.sinks;
+        if (sinks == null || sinks.length != names.size()) {
+            sinks = new ReportSink[names.size()];
+            files = new FileSink[names.size()];
+            for (int route = 1; route != sinks.length; ++route) {
+                String name = names.get(route);
+                String[] columns = global.getProperty("reformat.columns." + name, DEFAULT_COLUMNS)
+                        .trim().split("\\s*,\\s*");
+                File file = new File(global.getProperty("reformat.sink." + name, name + ".csv"));
+                files[route] = new FileSink(name, columns, file);
+                sinks[route] = files[route];
+            }
+        }
+        sinks[0] = roll == null ? new ReportSink(MessageRegistry.FEED, headings) : roll;
+        sinks[0].start(target);
+        plan = 0;
+        for (ReportSink sink : sinks) {
+            plan |= sink.plan;
+        }
+        // Only needed once!
+        if( include_header && sinks[0].csvwtr != null ) {
+            sinks[0].csvwtr.writeheading();
+            include_header= false;
+        }
+    }
+
+    /**
+     * Write the feed's buffered rows to its target, and append the
+     * rows of the file sinks to their files, unless they're being held.
+     * 
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        sinks[0].flush();
+        if (flush_sinks) {
+            for (int route = 1; route < sinks.length; ++route) {
+                sinks[route].flush();
+            }
+        }
+    }
+
+    /**
+     * Reformat one line, writing a CSV row to the sink for its message
+     * type unless the line is filtered or invalid.  An invalid line is
+     * counted in {@link #rejections}.
+     * 
+     * @param line The input line.
+     * @throws IOException
+     */
+    void reformat_line(CharSequence line) throws IOException {
+        int status = check(line, report, plan);
+        if (status == OK) {
+            ReportSink sink = sinks[message.route];
+            sink.writerow(report);
+            if (flush_sinks && sink.full()) {
+                sink.flush();
+            }
+        } else if (status != FILTERED) {
+            rejections.count(status, line);
+        }
+    }
+
+    /** Start offset of each word of the current line. */
+    int[] word_start = new int[24];
+
+    /** End offset of each word of the current line. */
+    int[] word_end = new int[24];
+
+    /** Scratch space for building values. */
+    final StringBuilder text = new StringBuilder();
+
+    /**
+     * Is this one of the characters matched by <tt>\s</tt>?
+     * @param c
+     * @return true for whitespace
+     */
+    static boolean is_space(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Find the words of a line, in a single pass, as
+     * <tt>line.split("\\s")</tt> would, without building any
+     * Strings.  The offsets are left in word_start and word_end.
+     * 
+     * <p>Each whitespace character ends a word, so adjacent spaces
+     * produce an empty word.  Trailing empty words are dropped.</p>
+     * 
+     * @param line
+     * @return the number of words
+     */
+    int tokenize(CharSequence line) {
+        return tokenize(line, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Find some of the words of a line, starting with word number first,
+     * whose predecessors have been found already, and stopping when
+     * limit words have been found.
+     * 
+     * <p>Trailing empty words are dropped only if the scan reaches the
+     * end of the line.</p>
+     * 
+     * @param line
+     * @param first the first word to find
+     * @param limit the number of words to stop at
+     * @return the number of words found, including the first words
+     */
+    int tokenize(CharSequence line, int first, int limit) {
+        int count = first;
+        int start = first == 0 ? 0 : word_end[first - 1] + 1;
+        int length = line.length();
+        for (int i = start; i <= length && count < limit; ++i) {
+            if (i == length || is_space(line.charAt(i))) {
+                if (count == word_start.length) {
+                    word_start = Arrays.copyOf(word_start, 2 * count);
+                    word_end = Arrays.copyOf(word_end, 2 * count);
+                }
+                word_start[count] = start;
+                word_end[count] = i;
+                count += 1;
+                start = i + 1;
+            }
+        }
+        if (count < limit) {
+            while (count > 0 && word_start[count - 1] == word_end[count - 1]) {
+                count -= 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Is the given word of the line exactly this text?
+     * @param line
+     * @param word
+     * @param expected
+     * @return true if the word matches
+     */
+    boolean word_is(CharSequence line, int word, String expected) {
+        int start = word_start[word];
+        return word_end[word] - start == expected.length()
+                && region_matches(line, start, expected);
+    }
+
+    /**
+     * Does the line contain the expected text at start?
+     * @param line
+     * @param start
+     * @param expected
+     * @return true if the text matches
+     */
+    static boolean region_matches(CharSequence line, int start, String expected) {
+        int length = expected.length();
+        if (start + length > line.length()) {
+            return false;
+        }
+        for (int i = 0; i != length; ++i) {
+            if (line.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the given word of the line.
+     * @param line
+     * @param word
+     * @return the word
+     */
+    String word(CharSequence line, int word) {
+        return line.subSequence(word_start[word], word_end[word]).toString();
+    }
+
+    /**
+     * Note that the line being checked is invalid.  The first
+     * reason found is the one reported.
+     * @param reason one of the status codes
+     * @return 0, a placeholder for the value which couldn't be parsed
+     */
+    int reject(int reason) {
+        if (error == OK) {
+            error = reason;
+        }
+        return 0;
+    }
+
+    /**
+     * Throw InvalidRow if a value was rejected since error was
+     * last cleared, and clear it.
+     * @throws org.hrva.hrtail.Reformat.InvalidRow 
+     */
+    void verify() throws InvalidRow {
+        int reason = error;
+        error = OK;
+        if (reason != OK) {
+            throw new InvalidRow(REASONS[reason]);
+        }
+    }
+
+    /**
+     * Confirm the label of a <tt>label:value</tt> word as well as a
+     * non-zero length value.
+     * @param line
+     * @param start the start of the word
+     * @param end the end of the word
+     * @param label
+     * @return the start of the value; end, an empty value, if the
+     * label is rejected
+     */
+    int value_start(CharSequence line, int start, int end, String label) {
+        int colon = start + label.length();
+        if (colon + 1 >= end || line.charAt(colon) != ':'
+                || !region_matches(line, start, label)) {
+            reject(BAD_LABEL);
+            return end;
+        }
+        return colon + 1;
     }
 
     /**
@@ -254,54 +639,215 @@ public class Reformat {
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
      */
     String label_value(String word, String label) throws InvalidRow {
-        String[] lv = word.split(":", 2);
-        if (lv.length != 2) {
-            throw new InvalidRow();
-        }
-        if (!lv[0].equals(label)) {
-            throw new InvalidRow();
-        }
-        if (lv[1].length() == 0) {
-            throw new InvalidRow();
-        }
-        return lv[1];
+        error = OK;
+        int start = value_start(word, 0, word.length(), label);
+        verify();
+        return word.substring(start);
     }
     
-    final SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss");
-
     /**
-     * Get a time value.
+     * Get a time value, which must be exactly <tt>HH:mm:ss</tt>.
      * @param word
      * @return
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
      */
     String get_time(String word) throws InvalidRow {
-        try {
-            time_fmt.parse(word);
-        } catch (ParseException ex) {
-            throw new InvalidRow();
-        }
+        error = OK;
+        parse_time(word, 0, word.length());
+        verify();
         return word;
     }
-    
-    final SimpleDateFormat input_date_fmt = new SimpleDateFormat("MM/dd");
-    final SimpleDateFormat output_date_fmt = new SimpleDateFormat("yyyy-MM-dd");
+
+    /**
+     * Parse a time between start and end, which must be exactly
+     * <tt>HH:mm:ss</tt>.
+     * @param line
+     * @param start
+     * @param end
+     * @return the time in seconds after midnight; rejected with BAD_TIME
+     */
+    int parse_time(CharSequence line, int start, int end) {
+        if (end - start != 8 || line.charAt(start + 2) != ':' || line.charAt(start + 5) != ':') {
+            return reject(BAD_TIME);
+        }
+        int hours = two_digits(line, start);
+        int minutes = two_digits(line, start + 3);
+        int seconds = two_digits(line, start + 6);
+        if (hours > 23 || minutes > 59 || seconds > 59) {
+            return reject(BAD_TIME);
+        }
+        return 3600 * hours + 60 * minutes + seconds;
+    }
+
+    /**
+     * Parse a decimal integer, with an optional sign, between start and end.
+     * @param line
+     * @param start
+     * @param end
+     * @return the value; rejected with BAD_NUMBER
+     */
+    int parse_int(CharSequence line, int start, int end) {
+        boolean negative = start < end && line.charAt(start) == '-';
+        int digits = negative ? start + 1 : start;
+        if (digits == end || end - digits > 9) {
+            return reject(BAD_NUMBER);
+        }
+        int value = 0;
+        for (int i = digits; i < end; ++i) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return reject(BAD_NUMBER);
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Get the integer value of the given <tt>label:value</tt> word of the line.
+     * @param line
+     * @param word
+     * @param label
+     * @return the value; rejected with BAD_LABEL or BAD_NUMBER
+     */
+    int label_int(CharSequence line, int word, String label) {
+        return parse_int(line, value_start(line, word_start[word], word_end[word], label), word_end[word]);
+    }
+
+    /**
+     * Get the value of two decimal digits.
+     * @param word
+     * @param start
+     * @return the value, or 99 if they aren't both digits
+     */
+    static int two_digits(CharSequence word, int start) {
+        int tens = word.charAt(start) - '0';
+        int units = word.charAt(start + 1) - '0';
+        if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+            return 99;
+        }
+        return 10 * tens + units;
+    }
+
+    /** 
+     * Formatted <tt>yyyy-MM-dd</tt> dates, by <tt>MM/dd</tt>, for each year.
+     * Shared by all instances. 
+     */
+    static final ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> date_caches =
+            new ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>>();
+
+    /** The year of the dates in dates. */
+    int dates_year = -1;
+
+    /** Formatted dates, by <tt>MM/dd</tt>, for dates_year. */
+    ConcurrentHashMap<String, String> dates;
 
     /**
      * Get a date value, converting the year to be the current year.
+     * 
      * @param word
      * @return
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
      */
     String get_date(String word) throws InvalidRow {
-        Calendar date = Calendar.getInstance();
-        try {
-            date.setTime(input_date_fmt.parse(word));
-        } catch (ParseException ex) {
-            throw new InvalidRow();
+        error = OK;
+        String date = find_date(word);
+        verify();
+        return date;
+    }
+
+    /**
+     * Find a date value, converting the year to be the current year.
+     * 
+     * <p>Almost every line has the same date, so each distinct
+     * <tt>MM/dd</tt> is validated and formatted once, and then
+     * found in a cache.</p>
+     * 
+     * @param word
+     * @return the date; null, rejected with BAD_DATE, if it's invalid
+     */
+    String find_date(String word) {
+        int year = now.get(Calendar.YEAR);
+        if (year != dates_year) {
+            ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<String, String>();
+            ConcurrentHashMap<String, String> shared = date_caches.putIfAbsent(year, cache);
+            dates = shared == null ? cache : shared;
+            dates_year = year;
         }
-        date.set(Calendar.YEAR, now.get(Calendar.YEAR));
-        return output_date_fmt.format(date.getTime());
+        String date = dates.get(word);
+        if (date == null) {
+            date = format_date(year, word);
+            if (date != null) {
+                dates.putIfAbsent(word, date);
+            }
+        }
+        return date;
+    }
+
+    /** The MM/dd of last_date, as month*100+day, or -1. */
+    int last_date_key = -1;
+
+    /** The year of last_date. */
+    int last_date_year = -1;
+
+    /** The last date found by {@link #get_date(CharSequence, int, int)}. */
+    String last_date;
+
+    /**
+     * Get the date value between start and end.
+     * 
+     * <p>This is the same as {@link #find_date(String)}, but a date
+     * which is the same as the previous line's date is found without
+     * building a String for it.</p>
+     * 
+     * @param line
+     * @param start
+     * @param end
+     * @return the date; null, rejected with BAD_DATE, if it's invalid
+     */
+    String get_date(CharSequence line, int start, int end) {
+        if (end - start == 5 && line.charAt(start + 2) == '/') {
+            int key = 100 * two_digits(line, start) + two_digits(line, start + 3);
+            if (key == last_date_key && now.get(Calendar.YEAR) == last_date_year) {
+                return last_date;
+            }
+            String date = find_date(line.subSequence(start, end).toString());
+            if (date != null) {
+                last_date = date;
+                last_date_key = key;
+                last_date_year = dates_year;
+            }
+            return date;
+        }
+        return find_date(line.subSequence(start, end).toString());
+    }
+
+    /** Days in each month of a leap year. */
+    static final int[] month_days = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    /**
+     * Validate a date which must be exactly <tt>MM/dd</tt> and format it
+     * as <tt>yyyy-MM-dd</tt>.
+     * @param year
+     * @param word
+     * @return the date; null, rejected with BAD_DATE, if it's invalid
+     */
+    String format_date(int year, String word) {
+        if (word.length() != 5 || word.charAt(2) != '/') {
+            reject(BAD_DATE);
+            return null;
+        }
+        int month = two_digits(word, 0);
+        int day = two_digits(word, 3);
+        boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        if (month < 1 || month > 12 || day < 1 || day > month_days[month - 1]
+                || month == 2 && day == 29 && !leap) {
+            reject(BAD_DATE);
+            return null;
+        }
+        StringBuilder date = new StringBuilder(10);
+        date.append(year).append('-').append(word, 0, 2).append('-').append(word, 3, 5);
+        return date.toString();
     }
 
     /**
@@ -311,14 +857,23 @@ public class Reformat {
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
      */
     String get_lat(String lat_lon) throws InvalidRow {
-        try {
-            String[] ll_item = lat_lon.split("/");
-            String p1 = ll_item[0].substring(0, 2);
-            String p2 = ll_item[0].substring(2, ll_item[0].length());
-            return p1 + "." + p2;
-        } catch (Exception ex) {
-            throw new InvalidRow();
-        }
+        error = OK;
+        int lat = parse_lat(lat_lon, 0, lat_lon.length());
+        verify();
+        text.setLength(0);
+        VehicleReport.append_degrees(lat, text);
+        return text.toString();
+    }
+
+    /**
+     * Parse the latitude portion of the lat/lon between start and end.
+     * @param line
+     * @param start
+     * @param end
+     * @return the latitude in units of 1e-7 degree; rejected with BAD_LAT_LON
+     */
+    int parse_lat(CharSequence line, int start, int end) {
+        return parse_degrees(line, start, index_of(line, '/', start, end), 90);
     }
 
     /**
@@ -329,14 +884,75 @@ public class Reformat {
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
      */
     String get_lon(String lat_lon) throws InvalidRow {
-        try {
-            String[] ll_item = lat_lon.split("/");
-            String p1 = ll_item[1].substring(0, 3);
-            String p2 = ll_item[1].substring(3, ll_item[1].length());
-            return p1 + "." + p2;
-        } catch (Exception ex) {
-            throw new InvalidRow();
+        error = OK;
+        int lon = parse_lon(lat_lon, 0, lat_lon.length());
+        verify();
+        text.setLength(0);
+        VehicleReport.append_degrees(lon, text);
+        return text.toString();
+    }
+
+    /**
+     * Parse the longitude portion of the lat/lon between start and end.
+     * @param line
+     * @param start
+     * @param end
+     * @return the longitude in units of 1e-7 degree; rejected with BAD_LAT_LON
+     */
+    int parse_lon(CharSequence line, int start, int end) {
+        int slash = index_of(line, '/', start, end);
+        if (slash == end) {
+            return reject(BAD_LAT_LON);
+        }
+        int lon_start = slash + 1;
+        return parse_degrees(line, lon_start, index_of(line, '/', lon_start, end), 180);
+    }
+
+    /**
+     * Parse a coordinate between start and end.  The log writes
+     * coordinates as integers in units of 1e-7 degree, with an
+     * optional sign.
+     * @param line
+     * @param start
+     * @param end
+     * @param limit the largest valid value, in degrees
+     * @return the coordinate in units of 1e-7 degree; rejected with BAD_LAT_LON
+     */
+    int parse_degrees(CharSequence line, int start, int end, int limit) {
+        boolean negative = start < end && line.charAt(start) == '-';
+        int digits = negative ? start + 1 : start;
+        if (digits == end || end - digits > 10) {
+            return reject(BAD_LAT_LON);
+        }
+        long value = 0;
+        for (int i = digits; i < end; ++i) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return reject(BAD_LAT_LON);
+            }
+            value = 10 * value + digit;
+        }
+        if (value > (long) limit * VehicleReport.DEGREE) {
+            return reject(BAD_LAT_LON);
         }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Find a character between start and end.
+     * @param line
+     * @param c
+     * @param start
+     * @param end
+     * @return the offset of the character, or end if it isn't there
+     */
+    static int index_of(CharSequence line, char c, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
     }
     
     String get_valid(String word) throws InvalidRow {
@@ -350,6 +966,9 @@ public class Reformat {
      * 
      * <p>Any invalid input throws an InvalidRow exception.</p>
      * 
+     * <p>This builds a new {@link VehicleReport} for the line; 
+     * {@link #parse(String, VehicleReport)} reuses one.</p>
+     * 
      * <p>Examples</p>
      * <code>
      * 07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842
@@ -367,67 +986,251 @@ public class Reformat {
      * @throws org.hrva.hrtail.Reformat.InvalidRow
      */
     public Map<String, String> extract_fields(String line) throws InvalidRow {
-        Map<String, String> row = null;
-        String[] words = line.split("\\s");
-        if (words.length < 5) {
-            throw new InvalidRow();
-        } else if (words[4].equals("MT_LOCATION") && words.length == 13) {
-            row = new TreeMap<String, String>();
-            row.put("Time", get_time(words[0]));
-            row.put("Date", get_date(words[1]));
-            row.put("Vehicle", words[2]);
-            row.put("H", words[3]);
-            String lat_lon = label_value(words[5], "Lat/Lon");
-            row.put("Lat", get_lat(lat_lon));
-            row.put("Lon", get_lon(lat_lon));
-            row.put("Location Valid/Invalid", get_valid(words[6]));
-            row.put("Adherence", label_value(words[7], "Adher"));
-            row.put("Adherence Valid/Invalid", get_valid(words[8]));
-            row.put("Odom", label_value(words[9], "Odom"));
-            row.put("Odom Valid/Invalid", get_valid(words[10]));
-            row.put("DGPS", label_value(words[11], "DGPS"));
-            row.put("FOM", label_value(words[12], "FOM"));
-
-        } else if (words[4].equals("MT_TIMEPOINTCROSSING") && words.length == 21) {
-            // Two flavors -- keep Arrival.  Drop Dwell.
-            if (words[6].equals("Arrival")) {
-                row = new TreeMap<String, String>();
-                row.put("Time", get_time(words[0]));
-                row.put("Date", get_date(words[1]));
-                row.put("Vehicle", words[2]);
-                row.put("H", words[3]);
-                //Time:07:04:36 Arrival 
-                row.put("Arrival", label_value(words[5], "Time"));
-                //Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221
-                row.put("Route", label_value(words[7], "Rte"));
-                row.put("Direction", label_value(words[8], "Dir"));
-                row.put("TP", label_value(words[9], "TP"));
-                row.put("Stop", label_value(words[10], "Stop"));
-                row.put("Svc", label_value(words[11], "Svc"));
-                row.put("Blk", label_value(words[12], "Blk"));
-                String lat_lon = label_value(words[13], "Lat/Lon");
-                row.put("Lat", get_lat(lat_lon));
-                row.put("Lon", get_lon(lat_lon));
-                row.put("Location Valid/Invalid", get_valid(words[14]));
-                row.put("Adherence", label_value(words[15], "Adher"));
-                row.put("Adherence Valid/Invalid", get_valid(words[16]));
-                row.put("Odom", label_value(words[17], "Odom"));
-                row.put("Odom Valid/Invalid", get_valid(words[18]));
-                row.put("DGPS", label_value(words[19], "DGPS"));
-                row.put("FOM", label_value(words[20], "FOM"));
+        VehicleReport row = new VehicleReport();
+        if (!parse(line, row)) {
+            return null;
+        }
+        return row.to_map();
+    }
+
+    /**
+     * Parse an input line into a VehicleReport.
+     * 
+     * <p>Any invalid input throws an InvalidRow exception, with the
+     * reason as its message.  {@link #check(CharSequence, VehicleReport)}
+     * does the same without an exception.</p>
+     * 
+     * @param line
+     * @param row The VehicleReport to fill in
+     * @return true if the row was filled in; false if the line is filtered
+     * @throws org.hrva.hrtail.Reformat.InvalidRow
+     */
+    public boolean parse(CharSequence line, VehicleReport row) throws InvalidRow {
+        int status = check(line, row);
+        if (status == FILTERED) {
+            return false;
+        } else if (status != OK) {
+            throw new InvalidRow(REASONS[status]);
+        }
+        return true;
+    }
+
+    /**
+     * Validate an input line and parse every column into a VehicleReport.
+     * 
+     * @param line
+     * @param row The VehicleReport to fill in
+     * @return the status, as {@link #check(CharSequence, VehicleReport, int)}
+     */
+    public int check(CharSequence line, VehicleReport row) {
+        return check(line, row, VehicleReport.ALL);
+    }
+
+    /**
+     * Validate an input line and parse the columns of a plan into a 
+     * VehicleReport.
+     * 
+     * <p>The helpers don't throw exceptions for bad values; each one 
+     * notes the first reason to reject the line and carries on with a
+     * placeholder value.  The status is checked once, at the end.</p>
+     * 
+     * <p>The message type word is found and looked up in {@link #messages}
+     * first; a type which isn't accepted, or a timepoint crossing whose
+     * qualifier isn't accepted, is dropped without splitting the rest of
+     * the line.  The number of words of an accepted type is always
+     * checked.  Then the message's parser fills in the row, and 
+     * {@link #message} tells which sink it goes to.</p>
+     * 
+     * <p>A value outside the plan is neither parsed nor validated; the row
+     * keeps whatever it had before.</p>
+     * 
+     * @param line
+     * @param row The VehicleReport to fill in; partly filled in if the
+     * line is rejected
+     * @param plan The columns to parse, from {@link VehicleReport#plan(String[])}
+     * @return OK if the row was filled in, FILTERED if the line is filtered,
+     * or the reason the line is invalid: one of TOO_FEW_WORDS, UNKNOWN_TYPE,
+     * BAD_LABEL, BAD_LAT_LON, BAD_DATE, BAD_TIME or BAD_NUMBER
+     */
+    public int check(CharSequence line, VehicleReport row, int plan) {
+        error = OK;
+        wanted = plan;
+        message = null;
+        // Find the message type before splitting the rest of the line.
+        if (tokenize(line, 0, 5) < 5) {
+            return TOO_FEW_WORDS;
+        }
+        MessageRegistry.Message first = messages.find(line, word_start[4], word_end[4]);
+        if (first == null) {
+            if (word_start[4] == word_end[4] && tokenize(line) < 5) {
+                return TOO_FEW_WORDS;
+            }
+            return UNKNOWN_TYPE;
+        }
+        // For example, keep Arrival.  Drop Dwell.
+        int found = 5;
+        MessageRegistry.Message match = null;
+        for (MessageRegistry.Message m = first; m != null && match == null; m = m.next) {
+            if (m.qualifier == null) {
+                match = m;
+            } else {
+                if (found <= m.qualifier_word) {
+                    found = tokenize(line, found, m.qualifier_word + 1);
+                }
+                if (found > m.qualifier_word && word_starts(line, m.qualifier_word, m.qualifier)) {
+                    match = m;
+                }
+            }
+        }
+        if (match == null) {
+            return FILTERED;
+        }
+        words = tokenize(line, found, Integer.MAX_VALUE);
+        if (match.words >= 0 && words != match.words) {
+            // A line broken in the middle.
+            return UNKNOWN_TYPE;
+        }
+        message = match;
+        int status = match.parser.parse(this, line, row);
+        return status == OK ? error : status;
+    }
+
+    /**
+     * Does the given word of the line start with this text?
+     * @param line
+     * @param word
+     * @param expected
+     * @return true if the word matches
+     */
+    boolean word_starts(CharSequence line, int word, String expected) {
+        int start = word_start[word];
+        return word_end[word] - start >= expected.length()
+                && region_matches(line, start, expected);
+    }
+
+    /**
+     * Parse the crossing time, the Dwell of a dwell, and the Rte to Blk
+     * words of a timepoint crossing.
+     * @param line
+     * @param row
+     */
+    void parse_crossing(CharSequence line, VehicleReport row) {
+        //Time:07:04:36 Arrival 
+        if (wants(VehicleReport.ARRIVAL_TIME)) {
+            row.arrival = parse_time(line, value_start(line, word_start[5], word_end[5], "Time"), word_end[5]);
+        }
+        //Time:07:04:37 Dwell:22
+        if (row.type == VehicleReport.DWELL && wants(VehicleReport.DWELL_TIME)) {
+            row.dwell = label_int(line, 6, "Dwell");
+        }
+        //Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221
+        if (wants(VehicleReport.ROUTE)) {
+            row.route = label_int(line, 7, "Rte");
+        }
+        if (wants(VehicleReport.DIRECTION)) {
+            row.direction = label_int(line, 8, "Dir");
+        }
+        if (wants(VehicleReport.TP)) {
+            row.tp = label_int(line, 9, "TP");
+        }
+        if (wants(VehicleReport.STOP)) {
+            row.stop = label_int(line, 10, "Stop");
+        }
+        if (wants(VehicleReport.SVC)) {
+            row.svc = label_int(line, 11, "Svc");
+        }
+        if (wants(VehicleReport.BLK)) {
+            row.blk = label_int(line, 12, "Blk");
+        }
+    }
+
+    /**
+     * Keep the message type word, and the rest of the line after it, 
+     * of a message with no parser of its own.
+     * @param line
+     * @param row
+     */
+    void parse_other(CharSequence line, VehicleReport row) {
+        if (wants(VehicleReport.MESSAGE)) {
+            row.message = word(line, 4);
+        }
+        if (wants(VehicleReport.TEXT)) {
+            row.rest = words > 5 
+                    ? line.subSequence(word_start[5], word_end[words - 1]).toString() 
+                    : "";
+        }
+    }
+
+    /**
+     * Is a column in the plan for the line being checked?
+     * @param column
+     * @return true if the column is parsed
+     */
+    boolean wants(int column) {
+        return VehicleReport.wants(wanted, column);
+    }
+
+    /**
+     * Parse the time, date, vehicle and H words, which begin every line.
+     * @param line
+     * @param row
+     */
+    void parse_common(CharSequence line, VehicleReport row) {
+        if (wants(VehicleReport.TIME)) {
+            row.time = parse_time(line, word_start[0], word_end[0]);
+        }
+        if (wants(VehicleReport.DATE)) {
+            row.date = get_date(line, word_start[1], word_end[1]);
+        }
+        if (wants(VehicleReport.VEHICLE)) {
+            row.vehicle = word(line, 2);
+        }
+        if (wants(VehicleReport.H)) {
+            row.h = word(line, 3);
+        }
+    }
+
+    /**
+     * Parse the eight words from Lat/Lon to FOM, which end every line.
+     * @param line
+     * @param first The word number of Lat/Lon
+     * @param row
+     */
+    void parse_location(CharSequence line, int first, VehicleReport row) {
+        if (wants(VehicleReport.LAT) || wants(VehicleReport.LON)) {
+            int lat_lon = value_start(line, word_start[first], word_end[first], "Lat/Lon");
+            if (wants(VehicleReport.LAT)) {
+                row.lat = parse_lat(line, lat_lon, word_end[first]);
+            }
+            if (wants(VehicleReport.LON)) {
+                row.lon = parse_lon(line, lat_lon, word_end[first]);
             }
-        } else {
-            /*
-             * Debugging:
-             * 
-            System.out.println("length " + words.length);
-            System.out.println("line " + line);
-            for (String w : words) {
-                System.out.println("  '" + w + "'");
+        }
+        if (wants(VehicleReport.LOCATION_VALID)) {
+            row.location_valid = word_is(line, first + 1, "[Valid]");
+        }
+        if (wants(VehicleReport.ADHERENCE)) {
+            row.adherence = label_int(line, first + 2, "Adher");
+        }
+        if (wants(VehicleReport.ADHERENCE_VALID)) {
+            row.adherence_valid = word_is(line, first + 3, "[Valid]");
+        }
+        if (wants(VehicleReport.ODOM)) {
+            row.odometer = label_int(line, first + 4, "Odom");
+        }
+        if (wants(VehicleReport.ODOM_VALID)) {
+            row.odometer_valid = word_is(line, first + 5, "[Valid]");
+        }
+        if (wants(VehicleReport.DGPS)) {
+            int dgps = value_start(line, word_start[first + 6], word_end[first + 6], "DGPS");
+            if (word_end[first + 6] == dgps + 2 && region_matches(line, dgps, "On")) {
+                row.dgps = "On";
+            } else {
+                row.dgps = line.subSequence(dgps, word_end[first + 6]).toString();
             }
-            */
-            throw new InvalidRow();
         }
-        return row;
+        if (wants(VehicleReport.FOM)) {
+            row.fom = label_int(line, first + 7, "FOM");
+        }
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counts of the lines {@link Reformat} rejected, by reason, with a
+ * sampled log of the rejected lines.
+ *
+ * <p>A damaged log can have a bad line in every few hundred.  Logging
+ * each one costs more than parsing it, and buries everything else in
+ * the log.  Instead, each reason logs at most one sample line every
+ * <tt>reformat.reject_log_ms</tt> milliseconds, along with the number
+ * of lines not shown since the last sample.  The counts are kept for
+ * every line.</p>
+ *
+ * <p>The counts are thread-safe, so the workers of a
+ * {@link ParallelReformat} share their parent's Rejections.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     reformat.reformat(rdr, wtr);
+ *     if( reformat.rejections.total() != 0 ) {
+ *         logger.info( "Rejected " + reformat.rejections );
+ *     }
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class Rejections {
+
+    /** Count of lines rejected, by reason. */
+    final AtomicLongArray counts = new AtomicLongArray(Reformat.REASONS.length);
+
+    /** Count of lines not logged since the last sample, by reason. */
+    final AtomicLongArray unlogged = new AtomicLongArray(Reformat.REASONS.length);
+
+    /** The earliest time the next sample may be logged, by reason. */
+    final AtomicLongArray next_sample = new AtomicLongArray(Reformat.REASONS.length);
+
+    /** Milliseconds between samples of each reason. */
+    final long interval;
+
+    /** Logger. */
+    final Log logger = LogFactory.getLog(Reformat.class);
+
+    /**
+     * Build a Rejections instance.
+     *
+     * @param interval Milliseconds between samples of each reason
+     */
+    public Rejections(long interval) {
+        super();
+        this.interval = interval;
+    }
+
+    /**
+     * Count a rejected line, and log it if no line has been logged for
+     * this reason in the last interval.
+     *
+     * <p>The line is only converted to a String when it's logged.</p>
+     *
+     * @param reason The reason, one of the Reformat status codes
+     * @param line The line
+     */
+    public void count(int reason, CharSequence line) {
+        counts.incrementAndGet(reason);
+        long now = System.currentTimeMillis();
+        long next = next_sample.get(reason);
+        if (now < next || !next_sample.compareAndSet(reason, next, now + interval)) {
+            unlogged.incrementAndGet(reason);
+            return;
+        }
+        long skipped = unlogged.getAndSet(reason, 0);
+        StringBuilder message = new StringBuilder();
+        message.append("Invalid (").append(Reformat.REASONS[reason]).append(") '")
+                .append(line).append("'");
+        if (skipped != 0) {
+            message.append("; ").append(skipped).append(" more since the last sample");
+        }
+        logger.warn(message.toString());
+    }
+
+    /**
+     * Get the number of lines rejected for one reason.
+     *
+     * @param reason The reason, one of the Reformat status codes
+     * @return count
+     */
+    public long get(int reason) {
+        return counts.get(reason);
+    }
+
+    /**
+     * Get the number of lines rejected for all reasons.
+     *
+     * @return count
+     */
+    public long total() {
+        long total = 0;
+        for (int r = 0; r != counts.length(); ++r) {
+            total += counts.get(r);
+        }
+        return total;
+    }
+
+    /**
+     * Build a Map from reason to count, with a key for each reason
+     * which has rejected a line.
+     *
+     * @return Map<String,Long> from reason to count.
+     */
+    public Map<String, Long> to_map() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int r = 0; r != counts.length(); ++r) {
+            long count = counts.get(r);
+            if (count != 0) {
+                result.put(Reformat.REASONS[r], count);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return to_map().toString();
+    }
+}
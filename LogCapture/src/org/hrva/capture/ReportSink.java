@@ -0,0 +1,109 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+
+/**
+ * A CSV output for the reports of some message types.
+ *
+ * <p>This is the feed sink, which writes to the Writer given to
+ * {@link Reformat#reformat(Reader, Writer)}.  Every other sink is a
+ * {@link FileSink}, which appends to its own CSV file, and the feed
+ * can also be a {@link RollingSink}.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     ReportSink feed = new ReportSink(MessageRegistry.FEED, headings);
+ *     feed.start(wtr);
+ *     feed.writerow(report);
+ *     ...
+ *     feed.flush();
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class ReportSink {
+
+    /** The sink name. */
+    public final String name;
+
+    /** CSV Headings. */
+    final String[] headings;
+
+    /** The columns of the headings, from {@link VehicleReport#plan(String[])}. */
+    final int plan;
+
+    /** Writes the rows. */
+    CSVWriter csvwtr;
+
+    /**
+     * Build the feed sink, which writes to the Writer given to
+     * {@link #start(Writer)}.
+     *
+     * @param name The sink name
+     * @param headings CSV Headings
+     */
+    public ReportSink(String name, String[] headings) {
+        this(name, headings, VehicleReport.plan(headings));
+    }
+
+    /**
+     * Build a sink which needs more columns parsed than it writes.
+     *
+     * @param name The sink name
+     * @param headings CSV Headings
+     * @param plan The columns to parse, including those of the headings
+     */
+    ReportSink(String name, String[] headings, int plan) {
+        super();
+        this.name = name;
+        this.headings = headings;
+        this.plan = plan;
+    }
+
+    /**
+     * Start writing the feed to a target.
+     *
+     * @param target Writer for the Output
+     */
+    void start(Writer target) {
+        csvwtr = new CSVWriter(target, headings);
+    }
+
+    /**
+     * Write a report.
+     *
+     * @param row The report
+     * @throws IOException
+     */
+    public void writerow(VehicleReport row) throws IOException {
+        csvwtr.writerow(row);
+    }
+
+    /**
+     * Have enough rows built up to flush them?  The feed's writer
+     * flushes its own buffer as it fills.
+     *
+     * @return true if flush should be called
+     */
+    boolean full() {
+        return false;
+    }
+
+    /**
+     * Write the buffered rows to the target.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        csvwtr.flush();
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The feed, written to a series of segment files partitioned by
+ * the service date and hour of each report.
+ *
+ * <p>Rather than one file which grows forever, each segment holds the
+ * reports of one partition, so a downstream job reads only the
+ * partitions it needs.  The segments of a date are in a directory named
+ * for the date, under <tt>reformat.roll.directory</tt>.</p>
+ * <code><pre>
+ * archive/2012-02-15/hrtrtf-07-000.csv
+ * archive/2012-02-15/hrtrtf-08-000.csv
+ * archive/2012-02-15/hrtrtf-08-001.csv
+ * </pre></code>
+ *
+ * <p>A segment is closed when a report for a later partition arrives,
+ * or when it reaches <tt>reformat.roll.max_size</tt>; the next one
+ * has the next sequence number.  The segments only roll forward: a late
+ * report, for an earlier partition, goes to the current segment, so
+ * reports which straddle an hour don't make a run of tiny segments.  A
+ * downstream job should allow for a few of a partition's reports in the
+ * first segment of the next one.  A new segment never overwrites an
+ * existing one, so a restarted capture carries on with a new segment.
+ * Each segment starts with its own heading row.  With
+ * <tt>reformat.roll.compress</tt>, a closed segment is gzipped by a
+ * background thread and the CSV file is removed.</p>
+ *
+ * <p>With <tt>reformat.roll.format=binary</tt>, the segments are
+ * written by a {@link SegmentWriter} instead, named <tt>.seg</tt>
+ * rather than <tt>.csv</tt>.  A binary segment has every field of each
+ * report, whatever the columns, so all of them are parsed.  The CSV
+ * feed can still be written to the target alongside.</p>
+ *
+ * <p>A RollingSink is kept by its {@link Reformat} from one reformat
+ * to the next, so the current segment stays open across the cycles of a
+ * {@link Capture}; its rows are flushed to the file at the end of each
+ * reformat.  If the Reformat was given a target Writer, the rows are
+ * written there too.</p>
+ *
+ * <p>The properties are</p>
+ * <dl>
+ * <dt><tt>reformat.roll.directory</tt><dd>The directory for the segments;
+ * there's no rolling unless this is set</dd>
+ * <dt><tt>reformat.roll.prefix</tt><dd>The start of each segment name,
+ * default <tt>hrtrtf</tt></dd>
+ * <dt><tt>reformat.roll.partition</tt><dd><tt>hour</tt> or <tt>day</tt>,
+ * default <tt>hour</tt></dd>
+ * <dt><tt>reformat.roll.max_size</tt><dd>The size of a segment, with an
+ * optional <tt>k</tt> or <tt>m</tt> suffix, default <tt>64m</tt></dd>
+ * <dt><tt>reformat.roll.compress</tt><dd>If <tt>true</tt>, gzip closed
+ * segments</dd>
+ * <dt><tt>reformat.roll.format</tt><dd><tt>csv</tt> or <tt>binary</tt>,
+ * default <tt>csv</tt></dd>
+ * </dl>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     RollingSink roll = RollingSink.configure(global, headings);
+ *     roll.start(null);
+ *     roll.writerow(report);
+ *     ...
+ *     roll.close();
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class RollingSink extends ReportSink {
+
+    /** The root directory of the segments. */
+    final File directory;
+
+    /** The start of each segment name. */
+    String prefix;
+
+    /** Partition by hour, or only by date? */
+    final boolean hourly;
+
+    /** The size, in characters or bytes, at which a segment is closed. */
+    final long max_size;
+
+    /** Gzip the closed segments? */
+    final boolean compress;
+
+    /** Write binary segments instead of CSV? */
+    final boolean binary;
+
+    /** The service date of the current segment, or null if none is open. */
+    String date;
+
+    /** The hour of the current segment; 0 when partitioned by day. */
+    int hour;
+
+    /** The sequence number of the current segment within its partition. */
+    int sequence;
+
+    /** The current segment file. */
+    File segment_file;
+
+    /** Writes the current CSV segment. */
+    CSVWriter segment;
+
+    /** Writes the current binary segment. */
+    SegmentWriter segment_binary;
+
+    /** Compresses closed segments; started when first needed. */
+    ExecutorService compressor;
+
+    /** The partition of the reports without a date. */
+    static final String UNKNOWN = "unknown";
+
+    /** Logger. */
+    final Log logger = LogFactory.getLog(RollingSink.class);
+
+    /**
+     * Build a RollingSink from the <tt>reformat.roll.</tt> properties.
+     *
+     * @param global The hrtail.properties file
+     * @param headings CSV Headings
+     * @return RollingSink, or null if <tt>reformat.roll.directory</tt> isn't set
+     */
+    public static RollingSink configure(Properties global, String[] headings) {
+        String directory = global.getProperty("reformat.roll.directory");
+        if (directory == null || directory.trim().length() == 0) {
+            return null;
+        }
+        String partition = global.getProperty("reformat.roll.partition", "hour").trim();
+        if (!partition.equals("hour") && !partition.equals("day")) {
+            throw new IllegalArgumentException("reformat.roll.partition must be hour or day, not " + partition);
+        }
+        String format = global.getProperty("reformat.roll.format", "csv").trim();
+        if (!format.equals("csv") && !format.equals("binary")) {
+            throw new IllegalArgumentException("reformat.roll.format must be csv or binary, not " + format);
+        }
+        return new RollingSink(headings, new File(directory.trim()),
+                global.getProperty("reformat.roll.prefix", "hrtrtf").trim(),
+                partition.equals("hour"),
+                LogTail.parse_size(global.getProperty("reformat.roll.max_size", "64m").trim()),
+                Boolean.parseBoolean(global.getProperty("reformat.roll.compress", "false").trim()),
+                format.equals("binary"));
+    }
+
+    /**
+     * Build a RollingSink.
+     *
+     * @param headings CSV Headings
+     * @param directory The root directory of the segments
+     * @param prefix The start of each segment name
+     * @param hourly Partition by hour, or only by date
+     * @param max_size The size, in characters, at which a segment is closed
+     * @param compress Gzip the closed segments
+     */
+    public RollingSink(String[] headings, File directory, String prefix, boolean hourly,
+            long max_size, boolean compress) {
+        this(headings, directory, prefix, hourly, max_size, compress, false);
+    }
+
+    /**
+     * Build a RollingSink which writes CSV or binary segments.
+     *
+     * @param headings CSV Headings
+     * @param directory The root directory of the segments
+     * @param prefix The start of each segment name
+     * @param hourly Partition by hour, or only by date
+     * @param max_size The size, in characters or bytes, at which a segment is closed
+     * @param compress Gzip the closed segments
+     * @param binary Write binary segments instead of CSV
+     */
+    public RollingSink(String[] headings, File directory, String prefix, boolean hourly,
+            long max_size, boolean compress, boolean binary) {
+        super(MessageRegistry.FEED, headings, binary ? VehicleReport.ALL
+                : VehicleReport.plan(headings) | 1 << VehicleReport.DATE | 1 << VehicleReport.TIME);
+        this.directory = directory;
+        this.prefix = prefix;
+        this.hourly = hourly;
+        this.max_size = max_size;
+        this.compress = compress;
+        this.binary = binary;
+    }
+
+    /**
+     * Start a reformat.  The rows are also written to the target,
+     * if there is one.
+     *
+     * @param target Writer for the Output, or null
+     */
+    @Override
+    void start(Writer target) {
+        csvwtr = target == null ? null : new CSVWriter(target, headings);
+    }
+
+    /**
+     * Write a report to the segment for its partition, and to the
+     * target.
+     *
+     * @param row The report
+     * @throws IOException
+     */
+    @Override
+    public void writerow(VehicleReport row) throws IOException {
+        if (csvwtr != null) {
+            csvwtr.writerow(row);
+        }
+        int row_hour = hourly ? row.time / 3600 : 0;
+        String row_date = row.date == null ? UNKNOWN : row.date;
+        if (date == null || later(row_date, row_hour)) {
+            roll(row_date, row_hour);
+        } else if ((binary ? segment_binary.size() : segment.size()) >= max_size) {
+            roll(date, hour);
+        }
+        if (binary) {
+            segment_binary.write(row);
+        } else {
+            segment.writerow(row);
+        }
+    }
+
+    /**
+     * Is a report's partition after the current segment's?  A report
+     * without a date is never later, and any dated report is later than
+     * a segment of undated ones.
+     *
+     * @param row_date The service date of the report, yyyy-MM-dd
+     * @param row_hour The hour of the report
+     * @return true if the segment should roll forward
+     */
+    boolean later(String row_date, int row_hour) {
+        if (row_date.equals(UNKNOWN)) {
+            return false;
+        }
+        if (date.equals(UNKNOWN)) {
+            return true;
+        }
+        int order = row_date.compareTo(date);
+        return order > 0 || order == 0 && row_hour > hour;
+    }
+
+    /**
+     * Write the buffered rows to the target and the current segment.
+     * The segment stays open.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (csvwtr != null) {
+            csvwtr.flush();
+        }
+        if (segment != null) {
+            segment.flush();
+        }
+        if (segment_binary != null) {
+            segment_binary.flush();
+        }
+    }
+
+    /**
+     * Close the current segment and open the next one.
+     *
+     * @param new_date The service date of the next segment
+     * @param new_hour The hour of the next segment
+     * @throws IOException
+     */
+    void roll(String new_date, int new_hour) throws IOException {
+        close_segment();
+        File folder = new File(directory, new_date);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Can't create " + folder);
+        }
+        int next = new_date.equals(date) && new_hour == hour ? sequence + 1 : 0;
+        File file = segment_file(folder, new_hour, next);
+        while (file.exists() || new File(file.getPath() + ".gz").exists()) {
+            next += 1;
+            file = segment_file(folder, new_hour, next);
+        }
+        date = new_date;
+        hour = new_hour;
+        sequence = next;
+        segment_file = file;
+        if (binary) {
+            segment_binary = new SegmentWriter(new FileOutputStream(file));
+        } else {
+            segment = new CSVWriter(new FileWriter(file), headings);
+            segment.writeheading();
+        }
+        logger.debug("Rolled to " + file);
+    }
+
+    /**
+     * The segment file for a partition and sequence number.
+     *
+     * @param folder The directory of the service date
+     * @param segment_hour The hour
+     * @param segment_sequence The sequence number
+     * @return File
+     */
+    File segment_file(File folder, int segment_hour, int segment_sequence) {
+        DecimalFormat two = new DecimalFormat("00");
+        DecimalFormat three = new DecimalFormat("000");
+        String name = hourly
+                ? prefix + "-" + two.format(segment_hour) + "-" + three.format(segment_sequence)
+                : prefix + "-" + three.format(segment_sequence);
+        return new File(folder, name + (binary ? ".seg" : ".csv"));
+    }
+
+    /**
+     * Close the current segment, if one is open, and compress it if
+     * that's wanted.
+     *
+     * @throws IOException
+     */
+    void close_segment() throws IOException {
+        if (segment != null) {
+            CSVWriter closing = segment;
+            segment = null;
+            closing.close();
+        } else if (segment_binary != null) {
+            SegmentWriter closing = segment_binary;
+            segment_binary = null;
+            closing.close();
+        } else {
+            return;
+        }
+        if (compress) {
+            compress(segment_file);
+        }
+    }
+
+    /**
+     * Gzip a closed segment on the background thread.
+     *
+     * @param file The segment file
+     */
+    void compress(final File file) {
+        if (compressor == null) {
+            compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "compress " + directory);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        compressor.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    gzip(file);
+                } catch (IOException ex) {
+                    logger.error("Can't compress " + file, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gzip a file, and remove the original.
+     *
+     * @param file The file
+     * @throws IOException
+     */
+    static void gzip(File file) throws IOException {
+        File gz = new File(file.getPath() + ".gz");
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 64 * 1024);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n = in.read(buffer);
+                while (n >= 0) {
+                    out.write(buffer, 0, n);
+                    n = in.read(buffer);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!file.delete()) {
+            throw new IOException("Can't remove " + file);
+        }
+    }
+
+    /**
+     * Close the current segment, and wait for the compression of the
+     * closed segments to finish.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (csvwtr != null) {
+            csvwtr.flush();
+        }
+        close_segment();
+        date = null;
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted compressing " + directory);
+            }
+            compressor = null;
+        }
+    }
+}
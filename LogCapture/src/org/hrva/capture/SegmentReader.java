@@ -0,0 +1,362 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the {@link VehicleReport}s of a binary segment written by
+ * {@link SegmentWriter}.
+ *
+ * <p>The reports are streamed from the start of the segment, one at a
+ * time, into a VehicleReport which the caller reuses.  A segment which
+ * was never closed is read up to its last complete block; a block which
+ * was only partly written, as when the segment is read while it's being
+ * written, ends the segment.</p>
+ *
+ * <p>A closed segment has a footer index.  {@link #footer(File)} reads
+ * it, and a reader can start at any block, for example the first one
+ * with the times wanted.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     SegmentReader segment = new SegmentReader(new FileInputStream("hrtrtf.seg"));
+ *     VehicleReport report = new VehicleReport();
+ *     while (segment.read(report)) {
+ *         csvwtr.writerow(report);
+ *     }
+ *     segment.close();
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class SegmentReader {
+
+    /**
+     * The footer index of a closed segment.
+     */
+    public static class Footer {
+
+        /** The blocks, in order. */
+        public final List<SegmentWriter.Block> blocks;
+        /** The dictionary texts, by number. */
+        public final List<String> words;
+
+        /**
+         * Build a Footer.
+         *
+         * @param blocks The blocks
+         * @param words The dictionary texts
+         */
+        public Footer(List<SegmentWriter.Block> blocks, List<String> words) {
+            super();
+            this.blocks = blocks;
+            this.words = words;
+        }
+    }
+
+    /** The segment. */
+    final DataInputStream in;
+
+    /** The dictionary texts defined so far, by number. */
+    final List<String> words;
+
+    /** The current block. */
+    byte[] buffer = new byte[64 * 1024];
+
+    /** The position of the next byte of the block in buffer. */
+    int position;
+
+    /** The rows left in the current block. */
+    int rows = 0;
+
+    /** Has the end of the blocks been read? */
+    boolean done = false;
+
+    /** The date, time and location of the previous row in the block. */
+    String date;
+    int time, lat, lon;
+
+    /**
+     * Read a segment from the start.
+     *
+     * @param in The segment
+     * @throws IOException if it isn't a segment
+     */
+    public SegmentReader(InputStream in) throws IOException {
+        super();
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.words = new ArrayList<String>();
+        byte[] magic = new byte[SegmentWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, SegmentWriter.MAGIC)) {
+            throw new IOException("Not a segment");
+        }
+    }
+
+    /**
+     * Read a closed segment, starting at one of its blocks.
+     *
+     * @param file The segment file
+     * @param footer The segment's footer, from {@link #footer(File)}
+     * @param block The number of the first block to read
+     * @throws IOException
+     */
+    public SegmentReader(File file, Footer footer, int block) throws IOException {
+        super();
+        SegmentWriter.Block start = footer.blocks.get(block);
+        FileInputStream istr = new FileInputStream(file);
+        istr.getChannel().position(start.position);
+        this.in = new DataInputStream(new BufferedInputStream(istr));
+        this.words = new ArrayList<String>(footer.words.subList(0, start.dictionary));
+    }
+
+    /**
+     * Read the footer index of a closed segment.
+     *
+     * @param file The segment file
+     * @return Footer
+     * @throws IOException if the segment wasn't closed
+     */
+    public static Footer footer(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < SegmentWriter.MAGIC.length + 12) {
+                throw new IOException("No footer in " + file);
+            }
+            raf.seek(length - 12);
+            long footer = raf.readLong();
+            if (raf.readInt() != SegmentWriter.TRAILER || footer < SegmentWriter.MAGIC.length
+                    || footer > length - 12) {
+                throw new IOException("No footer in " + file);
+            }
+            byte[] data = new byte[(int) (length - 12 - footer)];
+            raf.seek(footer);
+            raf.readFully(data);
+            SegmentReader decoder = new SegmentReader(data);
+            if (decoder.get_varint() != 0) {
+                throw new IOException("Bad footer in " + file);
+            }
+            int count = (int) decoder.get_varint();
+            List<SegmentWriter.Block> blocks = new ArrayList<SegmentWriter.Block>(count);
+            for (int b = 0; b != count; ++b) {
+                long position = decoder.get_varint();
+                int rows = (int) decoder.get_varint();
+                int dictionary = (int) decoder.get_varint();
+                String date = decoder.get_text();
+                int first_time = (int) decoder.get_varint();
+                int last_time = (int) decoder.get_varint();
+                blocks.add(new SegmentWriter.Block(position, rows, dictionary, date, first_time, last_time));
+            }
+            count = (int) decoder.get_varint();
+            List<String> words = new ArrayList<String>(count);
+            for (int w = 0; w != count; ++w) {
+                words.add(decoder.get_text());
+            }
+            return new Footer(blocks, words);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Build a decoder of bytes already read.
+     *
+     * @param data The bytes
+     */
+    SegmentReader(byte[] data) {
+        super();
+        this.in = null;
+        this.words = null;
+        this.buffer = data;
+        this.position = 0;
+    }
+
+    /**
+     * Read the next report.
+     *
+     * @param row The report to fill in
+     * @return false at the end of the segment
+     * @throws IOException
+     */
+    public boolean read(VehicleReport row) throws IOException {
+        if (rows == 0 && !next_block()) {
+            return false;
+        }
+        rows -= 1;
+        int flags = buffer[position++];
+        row.type = flags & SegmentWriter.TYPE_MASK;
+        if ((flags & SegmentWriter.DATE_CHANGED) != 0) {
+            date = get_text();
+        }
+        row.date = date;
+        time += get_signed();
+        row.time = time;
+        row.vehicle = get_word();
+        row.h = get_word();
+        row.lat = row.lon = row.adherence = row.odometer = row.fom = 0;
+        row.location_valid = (flags & SegmentWriter.LOCATION_VALID) != 0;
+        row.adherence_valid = (flags & SegmentWriter.ADHERENCE_VALID) != 0;
+        row.odometer_valid = (flags & SegmentWriter.ODOMETER_VALID) != 0;
+        row.dgps = row.message = row.rest = null;
+        row.arrival = row.route = row.direction = row.tp = row.stop = row.svc = row.blk = row.dwell = 0;
+        if (row.type == VehicleReport.OTHER) {
+            row.message = get_word();
+            row.rest = get_text();
+            return true;
+        }
+        lat += get_signed();
+        row.lat = lat;
+        lon += get_signed();
+        row.lon = lon;
+        row.adherence = get_signed();
+        row.odometer = get_signed();
+        row.dgps = get_word();
+        row.fom = get_signed();
+        if (row.type == VehicleReport.ARRIVAL || row.type == VehicleReport.DWELL) {
+            row.arrival = row.time + get_signed();
+            row.route = get_signed();
+            row.direction = get_signed();
+            row.tp = get_signed();
+            row.stop = get_signed();
+            row.svc = get_signed();
+            row.blk = get_signed();
+            if (row.type == VehicleReport.DWELL) {
+                row.dwell = get_signed();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the next block into the buffer.  A truncated block is the
+     * end of the blocks.
+     *
+     * @return false at the end of the blocks
+     * @throws IOException
+     */
+    boolean next_block() throws IOException {
+        while (!done && rows == 0) {
+            long count = read_varint();
+            int length = count <= 0 ? -1 : (int) read_varint();
+            if (length < 0) {
+                done = true;
+                break;
+            }
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, 2 * buffer.length)];
+            }
+            try {
+                in.readFully(buffer, 0, length);
+            } catch (EOFException ex) {
+                done = true;
+                break;
+            }
+            position = 0;
+            rows = (int) count;
+            date = null;
+            time = lat = lon = 0;
+        }
+        return !done;
+    }
+
+    /**
+     * Read a varint from the stream.
+     *
+     * @return The value, or -1 at the end of the stream, even partway
+     * through the varint
+     * @throws IOException
+     */
+    long read_varint() throws IOException {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Get a varint from the buffer.
+     *
+     * @return The value
+     */
+    long get_varint() {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Get a zig-zag varint from the buffer.
+     *
+     * @return The value
+     */
+    int get_signed() {
+        int value = (int) get_varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Get a text, which may be null, from the buffer.
+     *
+     * @return The text
+     */
+    String get_text() {
+        int length = (int) get_varint();
+        if (length == 0) {
+            return null;
+        }
+        String text = new String(buffer, position, length - 1, SegmentWriter.UTF8);
+        position += length - 1;
+        return text;
+    }
+
+    /**
+     * Get a dictionary-encoded text, which may be null, from the buffer.
+     *
+     * @return The text
+     */
+    String get_word() {
+        int number = (int) get_varint();
+        if (number == 0) {
+            return null;
+        }
+        if (number == 1) {
+            String text = get_text();
+            words.add(text);
+            return text;
+        }
+        return words.get(number - 2);
+    }
+
+    /**
+     * Close the segment.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@link VehicleReport}s in the compact binary segment format,
+ * which {@link SegmentReader} reads back.
+ *
+ * <p>The CSV feed repeats the vehicle id, the full date and the
+ * validity flags on every row, and writes coordinates as decimal text.
+ * A segment row is usually under twenty bytes:</p>
+ * <ul>
+ * <li>The vehicle id, H and DGPS fields and the message type are
+ * dictionary-encoded.  The first time a text appears it's written in
+ * full and numbered; after that only its number is written.</li>
+ * <li>The date is only written when it changes.</li>
+ * <li>The time, latitude and longitude are written as the difference
+ * from the previous row, and the arrival time as the difference from
+ * the time.</li>
+ * <li>The validity flags share a byte with the report type.</li>
+ * <li>Integers are zig-zag varints: small values, positive or
+ * negative, take one byte.</li>
+ * </ul>
+ *
+ * <p>Rows are grouped into blocks of up to {@link #BLOCK_ROWS} rows;
+ * the differences start over in each block.  A block is also ended by
+ * {@link #flush()}.  {@link #close()} writes a footer index of the
+ * blocks, each with its position, row count and first and last times,
+ * and the whole dictionary.  With the footer, a reader can go straight
+ * to the block it needs.  A segment without one, from a writer which
+ * never closed, can still be read from the start.</p>
+ *
+ * <p>The layout is</p>
+ * <code><pre>
+ * segment := MAGIC block* 0 footer footer_position:long TRAILER:int
+ * block   := rows length row{rows}
+ * row     := flags [date] time vehicle h
+ *            ( message rest
+ *            | lat lon adherence odometer dgps fom [arrival route direction tp stop svc blk [dwell]] )
+ * footer  := blocks (position rows dictionary date first_time last_time){blocks}
+ *            words word{words}
+ * </pre></code>
+ * <p>All unmarked numbers are varints; texts are a varint length plus
+ * one, zero for null, then UTF-8; a dictionary entry is zero for null,
+ * one for a new text which follows, or its number plus two.  An
+ * {@link VehicleReport#OTHER} row has the message type and the rest of
+ * the line instead of the location.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     SegmentWriter segment = new SegmentWriter(new FileOutputStream("hrtrtf.seg"));
+ *     segment.write(report);
+ *     ...
+ *     segment.close();
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class SegmentWriter {
+
+    /** The first bytes of a segment. */
+    static final byte[] MAGIC = {'H', 'R', 'T', 'S', 'E', 'G', '0', '1'};
+
+    /** The last four bytes of a closed segment, after the footer position. */
+    static final int TRAILER = 0x48525449;
+
+    /** The most rows in a block. */
+    public static final int BLOCK_ROWS = 4096;
+
+    /** Flag bits, with the report type in the low three bits. */
+    static final int TYPE_MASK = 0x07, DATE_CHANGED = 0x08, LOCATION_VALID = 0x10,
+            ADHERENCE_VALID = 0x20, ODOMETER_VALID = 0x40;
+
+    /** Texts are UTF-8. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The index entry of a block.
+     */
+    public static class Block {
+
+        /** The position of the block in the segment. */
+        public final long position;
+        /** The number of rows. */
+        public final int rows;
+        /** The number of dictionary entries defined before the block. */
+        public final int dictionary;
+        /** The date of the first row. */
+        public final String date;
+        /** The time of the first row. */
+        public final int first_time;
+        /** The time of the last row. */
+        public final int last_time;
+
+        /**
+         * Build a Block.
+         *
+         * @param position The position of the block in the segment
+         * @param rows The number of rows
+         * @param dictionary The number of dictionary entries defined before the block
+         * @param date The date of the first row
+         * @param first_time The time of the first row
+         * @param last_time The time of the last row
+         */
+        public Block(long position, int rows, int dictionary, String date,
+                int first_time, int last_time) {
+            super();
+            this.position = position;
+            this.rows = rows;
+            this.dictionary = dictionary;
+            this.date = date;
+            this.first_time = first_time;
+            this.last_time = last_time;
+        }
+    }
+
+    /** The segment. */
+    final OutputStream out;
+
+    /** The number of bytes written to out. */
+    long written = 0;
+
+    /** The dictionary number of each text. */
+    final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    /** The dictionary texts, by number. */
+    final List<String> words = new ArrayList<String>();
+
+    /** The index of the blocks written. */
+    final List<Block> blocks = new ArrayList<Block>();
+
+    /** The current block. */
+    byte[] buffer = new byte[64 * 1024];
+
+    /** The number of bytes in buffer. */
+    int used = 0;
+
+    /** The number of rows in the current block. */
+    int rows = 0;
+
+    /** The number of dictionary entries defined before the current block. */
+    int block_dictionary = 0;
+
+    /** The date, time and location of the previous row in the block. */
+    String date;
+    int time, lat, lon;
+
+    /** The date and time of the first row of the block. */
+    String first_date;
+    int first_time;
+
+    /**
+     * Start a segment.
+     *
+     * @param out The stream to write it to
+     * @throws IOException
+     */
+    public SegmentWriter(OutputStream out) throws IOException {
+        super();
+        this.out = out;
+        out.write(MAGIC);
+        written = MAGIC.length;
+    }
+
+    /**
+     * Write a report.
+     *
+     * @param row The report
+     * @throws IOException
+     */
+    public void write(VehicleReport row) throws IOException {
+        if (rows == 0) {
+            date = null;
+            time = lat = lon = 0;
+            first_date = row.date;
+            first_time = row.time;
+            block_dictionary = words.size();
+        }
+        boolean date_changed = rows == 0 || !same(row.date, date);
+        int flags = row.type & TYPE_MASK;
+        if (date_changed) {
+            flags |= DATE_CHANGED;
+        }
+        if (row.location_valid) {
+            flags |= LOCATION_VALID;
+        }
+        if (row.adherence_valid) {
+            flags |= ADHERENCE_VALID;
+        }
+        if (row.odometer_valid) {
+            flags |= ODOMETER_VALID;
+        }
+        reserve(16);
+        buffer[used++] = (byte) flags;
+        if (date_changed) {
+            put_text(row.date);
+            date = row.date;
+        }
+        put_signed(row.time - time);
+        time = row.time;
+        put_word(row.vehicle);
+        put_word(row.h);
+        if (row.type == VehicleReport.OTHER) {
+            put_word(row.message);
+            put_text(row.rest);
+        } else {
+            put_location(row);
+        }
+        rows += 1;
+        if (rows == BLOCK_ROWS) {
+            end_block();
+        }
+    }
+
+    /**
+     * Add the location, adherence and odometer of a report, and the
+     * crossing of an ARRIVAL or DWELL.
+     *
+     * @param row The report
+     */
+    void put_location(VehicleReport row) {
+        put_signed(row.lat - lat);
+        lat = row.lat;
+        put_signed(row.lon - lon);
+        lon = row.lon;
+        put_signed(row.adherence);
+        put_signed(row.odometer);
+        put_word(row.dgps);
+        put_signed(row.fom);
+        if (row.type == VehicleReport.ARRIVAL || row.type == VehicleReport.DWELL) {
+            put_signed(row.arrival - row.time);
+            put_signed(row.route);
+            put_signed(row.direction);
+            put_signed(row.tp);
+            put_signed(row.stop);
+            put_signed(row.svc);
+            put_signed(row.blk);
+            if (row.type == VehicleReport.DWELL) {
+                put_signed(row.dwell);
+            }
+        }
+    }
+
+    /**
+     * The number of bytes of the segment so far, written or buffered.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        return written + used;
+    }
+
+    /**
+     * End the current block, and flush the stream.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        end_block();
+        out.flush();
+    }
+
+    /**
+     * End the current block, write the footer, and close the stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            end_block();
+            long footer = written;
+            rows = 0;
+            put_varint(0);
+            put_varint(blocks.size());
+            for (Block block : blocks) {
+                put_varint(block.position);
+                put_varint(block.rows);
+                put_varint(block.dictionary);
+                put_text(block.date);
+                put_varint(block.first_time);
+                put_varint(block.last_time);
+            }
+            put_varint(words.size());
+            for (String word : words) {
+                put_text(word);
+            }
+            reserve(12);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[used++] = (byte) (footer >>> shift);
+            }
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[used++] = (byte) (TRAILER >>> shift);
+            }
+            out.write(buffer, 0, used);
+            written += used;
+            used = 0;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the current block, with its row count and length, and add
+     * it to the index.
+     *
+     * @throws IOException
+     */
+    void end_block() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        byte[] header = new byte[20];
+        int length = varint(header, varint(header, 0, rows), used);
+        out.write(header, 0, length);
+        out.write(buffer, 0, used);
+        blocks.add(new Block(written, rows, block_dictionary, first_date, first_time, time));
+        written += length + used;
+        used = 0;
+        rows = 0;
+    }
+
+    /**
+     * Are two texts, either of which may be null, the same?
+     *
+     * @param a A text
+     * @param b A text
+     * @return true if they're equal
+     */
+    static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Make room in the buffer for more bytes.
+     *
+     * @param size The number of bytes
+     */
+    void reserve(int size) {
+        if (used + size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, used + size));
+        }
+    }
+
+    /**
+     * Add a varint.
+     *
+     * @param value A value which isn't negative
+     */
+    void put_varint(long value) {
+        reserve(10);
+        used = varint(buffer, used, value);
+    }
+
+    /**
+     * Add a zig-zag varint, which is short for small negative values too.
+     *
+     * @param value The value
+     */
+    void put_signed(int value) {
+        put_varint(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add a text, which may be null.
+     *
+     * @param text The text
+     */
+    void put_text(String text) {
+        if (text == null) {
+            put_varint(0);
+            return;
+        }
+        byte[] bytes = text.getBytes(UTF8);
+        put_varint(bytes.length + 1);
+        reserve(bytes.length);
+        System.arraycopy(bytes, 0, buffer, used, bytes.length);
+        used += bytes.length;
+    }
+
+    /**
+     * Add a dictionary-encoded text, which may be null.
+     *
+     * @param text The text
+     */
+    void put_word(String text) {
+        if (text == null) {
+            put_varint(0);
+            return;
+        }
+        Integer number = dictionary.get(text);
+        if (number != null) {
+            put_varint(number + 2);
+            return;
+        }
+        dictionary.put(text, words.size());
+        words.add(text);
+        put_varint(1);
+        put_text(text);
+    }
+
+    /**
+     * Encode a varint: seven bits to a byte, low bits first, with the
+     * high bit set on all but the last byte.
+     *
+     * @param bytes The buffer, with room for ten bytes
+     * @param position Where to put the varint
+     * @param value A value which isn't negative
+     * @return The position after the varint
+     */
+    static int varint(byte[] bytes, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives extracts from a {@link LogTail} as the log grows.
+ *
+ * <p>When a log is followed, each new extract is handed to a TailSink
+ * rather than being written to a temporary file. </p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     LogTail lt = new LogTail(config);
+ *     lt.follow( "/path/to/some.log", new TailSink() {
+ *         public void extract(String source, long sequence, ByteBuffer extract) {
+ *             ...
+ *         }
+ *     });
+ * </pre></code>
+ *
+ * @author slott
+ */
+public interface TailSink {
+
+    /**
+     * Consume one extract from the log.
+     *
+     * <p>The extract is only valid for the duration of this call;
+     * the buffer may be reused for the next extract.</p>
+     *
+     * @param source The log filename being tailed
+     * @param sequence The sequence number of this extract
+     * @param extract The new bytes, from position to limit
+     * @throws IOException
+     */
+    void extract(String source, long sequence, ByteBuffer extract) throws IOException;
+}
@@ -0,0 +1,293 @@
+/*
+ * The HRT Project.
+ * This work is licensed under the
+ * Creative Commons Attribution-NonCommercial 3.0 Unported License.
+ * To view a copy of this license,
+ * visit http://creativecommons.org/licenses/by-nc/3.0/
+ * or send a letter to
+ * Creative Commons, 444 Castro Street, Suite 900, Mountain View, California, 94041, USA.
+ */
+package org.hrva.capture;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One vehicle report from the GPS log: a location, a timepoint arrival
+ * or dwell, or some other message.
+ *
+ * <p>A VehicleReport is reused for line after line; {@link Reformat}
+ * fills it in and a {@link CSVWriter} writes it.  The numeric values
+ * are kept as primitives; only the text values are Strings.  Latitude
+ * and longitude are fixed-point integers in units of 1e-7 degree, as
+ * they're written in the log.</p>
+ *
+ * <p>Each value has a column number and a column name.  The names are the
+ * keys of the Map built by {@link Reformat#extract_fields(String)}; a
+ * CSVWriter binds its headings to column numbers once, not for each row.</p>
+ *
+ * <p>A set of column numbers is a plan, built by {@link #plan(String[])}.
+ * {@link Reformat} only parses the columns in its plan; the other values
+ * are left over from the previous line.</p>
+ *
+ * <p>Typical use case</p>
+ * <code><pre>
+ *     VehicleReport report = new VehicleReport();
+ *     if( reformat.parse(line, report) ) {
+ *         csvwtr.writerow(report);
+ *     }
+ * </pre></code>
+ *
+ * @author slott
+ */
+public class VehicleReport {
+
+    /** A location report: MT_LOCATION. */
+    public static final int LOCATION = 1;
+    /** A timepoint arrival report: MT_TIMEPOINTCROSSING with Arrival. */
+    public static final int ARRIVAL = 2;
+    /** A timepoint dwell report: MT_TIMEPOINTCROSSING with Dwell. */
+    public static final int DWELL = 3;
+    /** Any other message: only the common words, the message type and the rest of the line. */
+    public static final int OTHER = 4;
+
+    /** Column numbers. */
+    public static final int DATE = 0, TIME = 1, VEHICLE = 2, H = 3, LAT = 4, LON = 5,
+            LOCATION_VALID = 6, ADHERENCE = 7, ADHERENCE_VALID = 8, ODOM = 9,
+            ODOM_VALID = 10, DGPS = 11, FOM = 12, ARRIVAL_TIME = 13, ROUTE = 14,
+            DIRECTION = 15, TP = 16, STOP = 17, SVC = 18, BLK = 19, DWELL_TIME = 20,
+            MESSAGE = 21, TEXT = 22;
+
+    /** Column names, by column number. */
+    public static final String[] COLUMNS = {
+        "Date", "Time", "Vehicle", "H", "Lat", "Lon", "Location Valid/Invalid",
+        "Adherence", "Adherence Valid/Invalid", "Odom", "Odom Valid/Invalid",
+        "DGPS", "FOM", "Arrival", "Route", "Direction", "TP", "Stop", "Svc", "Blk",
+        "Dwell", "Message", "Text"
+    };
+
+    /** A plan with every column. */
+    public static final int ALL = (1 << COLUMNS.length) - 1;
+
+    /** One degree of latitude or longitude, in units of 1e-7 degree. */
+    public static final int DEGREE = 10000000;
+
+    /** The first column which only an ARRIVAL or DWELL has. */
+    static final int FIRST_ARRIVAL_COLUMN = ARRIVAL_TIME;
+
+    /** The first column which only an OTHER has. */
+    static final int FIRST_OTHER_COLUMN = MESSAGE;
+
+    /** LOCATION, ARRIVAL, DWELL or OTHER. */
+    public int type;
+    /** Report time, in seconds after midnight. */
+    public int time;
+    /** Report date, yyyy-MM-dd. */
+    public String date;
+    /** Vehicle id, for example V.1.2233. */
+    public String vehicle;
+    /** The H field, for example H.0.0. */
+    public String h;
+    /** Latitude, in units of 1e-7 degree. */
+    public int lat;
+    /** Longitude, in units of 1e-7 degree. */
+    public int lon;
+    /** Is the location valid? */
+    public boolean location_valid;
+    /** Schedule adherence. */
+    public int adherence;
+    /** Is the adherence valid? */
+    public boolean adherence_valid;
+    /** Odometer. */
+    public int odometer;
+    /** Is the odometer valid? */
+    public boolean odometer_valid;
+    /** DGPS status, for example On. */
+    public String dgps;
+    /** Figure of merit. */
+    public int fom;
+    /** Crossing time, in seconds after midnight; ARRIVAL or DWELL only. */
+    public int arrival;
+    /** Route; ARRIVAL or DWELL only. */
+    public int route;
+    /** Direction; ARRIVAL or DWELL only. */
+    public int direction;
+    /** Timepoint; ARRIVAL or DWELL only. */
+    public int tp;
+    /** Stop; ARRIVAL or DWELL only. */
+    public int stop;
+    /** Service; ARRIVAL or DWELL only. */
+    public int svc;
+    /** Block; ARRIVAL or DWELL only. */
+    public int blk;
+    /** Dwell; DWELL only. */
+    public int dwell;
+    /** The message type, for example MT_OPERATORLOGON; OTHER only. */
+    public String message;
+    /** The rest of the line after the message type; OTHER only. */
+    public String rest;
+
+    /**
+     * Get the column number of a column name.
+     *
+     * @param name The column name
+     * @return The column number, or -1 for an unknown name
+     */
+    public static int column(String name) {
+        for (int c = 0; c != COLUMNS.length; ++c) {
+            if (COLUMNS[c].equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compile a plan: the set of columns to parse, as a bit mask with
+     * bit <i>c</i> set for column number <i>c</i>.
+     *
+     * @param names The column names
+     * @return The plan
+     * @throws IllegalArgumentException for an unknown column name
+     */
+    public static int plan(String[] names) {
+        int plan = 0;
+        for (String name : names) {
+            int c = column(name);
+            if (c < 0) {
+                throw new IllegalArgumentException("Unknown column '" + name + "'");
+            }
+            plan |= 1 << c;
+        }
+        return plan;
+    }
+
+    /**
+     * Does a plan include a column?
+     *
+     * @param plan The plan
+     * @param column The column number
+     * @return true if the column is parsed
+     */
+    public static boolean wants(int plan, int column) {
+        return (plan & 1 << column) != 0;
+    }
+
+    /**
+     * Does this report have a value for the given column?
+     *
+     * @param column The column number
+     * @return true if there's a value
+     */
+    public boolean has(int column) {
+        if (column < 0 || column >= COLUMNS.length) {
+            return false;
+        }
+        switch (type) {
+            case LOCATION: return column < FIRST_ARRIVAL_COLUMN;
+            case ARRIVAL: return column < DWELL_TIME;
+            case DWELL: return column < FIRST_OTHER_COLUMN;
+            case OTHER: return column <= H || column >= FIRST_OTHER_COLUMN;
+            default: return false;
+        }
+    }
+
+    /**
+     * Append the text of one column to a buffer.  Nothing is appended
+     * for a column this report doesn't have.
+     *
+     * @param column The column number
+     * @param text The buffer
+     */
+    public void append(int column, StringBuilder text) {
+        if (!has(column)) {
+            return;
+        }
+        switch (column) {
+            case DATE: text.append(date); break;
+            case TIME: append_time(time, text); break;
+            case VEHICLE: text.append(vehicle); break;
+            case H: text.append(h); break;
+            case LAT: append_degrees(lat, text); break;
+            case LON: append_degrees(lon, text); break;
+            case LOCATION_VALID: text.append(location_valid ? 'V' : 'I'); break;
+            case ADHERENCE: text.append(adherence); break;
+            case ADHERENCE_VALID: text.append(adherence_valid ? 'V' : 'I'); break;
+            case ODOM: text.append(odometer); break;
+            case ODOM_VALID: text.append(odometer_valid ? 'V' : 'I'); break;
+            case DGPS: text.append(dgps); break;
+            case FOM: text.append(fom); break;
+            case ARRIVAL_TIME: append_time(arrival, text); break;
+            case ROUTE: text.append(route); break;
+            case DIRECTION: text.append(direction); break;
+            case TP: text.append(tp); break;
+            case STOP: text.append(stop); break;
+            case SVC: text.append(svc); break;
+            case BLK: text.append(blk); break;
+            case DWELL_TIME: text.append(dwell); break;
+            case MESSAGE: text.append(message); break;
+            case TEXT: text.append(rest); break;
+        }
+    }
+
+    /**
+     * Append a time of day as HH:mm:ss.
+     *
+     * @param seconds Seconds after midnight
+     * @param text The buffer
+     */
+    static void append_time(int seconds, StringBuilder text) {
+        append_two_digits(seconds / 3600, text);
+        text.append(':');
+        append_two_digits(seconds / 60 % 60, text);
+        text.append(':');
+        append_two_digits(seconds % 60, text);
+    }
+
+    /**
+     * Append a coordinate in degrees, with seven decimal places.
+     *
+     * @param value Degrees, in units of 1e-7 degree
+     * @param text The buffer
+     */
+    static void append_degrees(int value, StringBuilder text) {
+        if (value < 0) {
+            text.append('-');
+            value = -value;
+        }
+        text.append(value / DEGREE).append('.');
+        int fraction = value % DEGREE;
+        for (int scale = DEGREE / 10; scale > 0; scale /= 10) {
+            text.append((char) ('0' + fraction / scale % 10));
+        }
+    }
+
+    /**
+     * Append a value from 0 to 99 as two digits.
+     *
+     * @param value The value
+     * @param text The buffer
+     */
+    static void append_two_digits(int value, StringBuilder text) {
+        text.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Build a Map from column name to text, with a key for each column
+     * this report has.
+     *
+     * @return Map<String,String> from column name to value.
+     */
+    public Map<String, String> to_map() {
+        Map<String, String> row = new TreeMap<String, String>();
+        StringBuilder text = new StringBuilder();
+        for (int c = 0; c != COLUMNS.length; ++c) {
+            if (has(c)) {
+                text.setLength(0);
+                append(c, text);
+                row.put(COLUMNS[c], text.toString());
+            }
+        }
+        return row;
+    }
+}
@@ -53,6 +53,7 @@ public class CSVWriterTest extends TestCase {
         String value = "word";
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.escape(value);
+        instance.flush();
         assertEquals( "word", buffer.toString() );
     }
     
@@ -65,6 +66,7 @@ public class CSVWriterTest extends TestCase {
         String value = "contains \"quotes\"";
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.escape(value);
+        instance.flush();
         assertEquals( "\"contains \"\"quotes\"\"\"", buffer.toString() );
     }
 
@@ -77,6 +79,7 @@ public class CSVWriterTest extends TestCase {
         String value = "contains, comma";
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.escape(value);
+        instance.flush();
         assertEquals( "\"contains, comma\"", buffer.toString() );
     }
 
@@ -88,6 +91,7 @@ public class CSVWriterTest extends TestCase {
         System.out.println("writeheading");
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.writeheading();
+        instance.flush();
         assertEquals( "Col1,Col2\n", buffer.toString() );
     }
 
@@ -103,6 +107,7 @@ public class CSVWriterTest extends TestCase {
         row.put("Col3","extra");
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.writerow(row);
+        instance.flush();
         assertEquals( "data1,\"data,2\"\n", buffer.toString() );
     }
 
@@ -117,6 +122,56 @@ public class CSVWriterTest extends TestCase {
         row.put("Col3","extra");
         CSVWriter instance = new CSVWriter(buffer, headings);
         instance.writerow(row);
+        instance.flush();
         assertEquals( "data1,\n", buffer.toString() );
     }
+
+    /**
+     * Test of writerow method, of class CSVWriter, with a VehicleReport.
+     * @throws Exception 
+     */
+    public void testWriterow_report() throws Exception {
+        System.out.println("testWriterow_report");
+        String[] columns = { "Time", "Vehicle", "Adherence", "Route", "Col3" };
+        VehicleReport row = new VehicleReport();
+        row.type = VehicleReport.LOCATION;
+        row.time = 7*3600 + 4*60 + 42;
+        row.vehicle = "V,1";
+        row.adherence = -1;
+        row.route = 4;
+        CSVWriter instance = new CSVWriter(buffer, columns);
+        instance.writerow(row);
+        row.type = VehicleReport.ARRIVAL;
+        instance.writerow(row);
+        instance.flush();
+        assertEquals( "07:04:42,\"V,1\",-1,,\n07:04:42,\"V,1\",-1,4,\n", buffer.toString() );
+    }
+
+    /**
+     * Test of writerow method, of class CSVWriter, with rows
+     * which are only written to the Writer in batches.
+     * @throws Exception 
+     */
+    public void testWriterow_batched() throws Exception {
+        System.out.println("testWriterow_batched");
+        Map<String, String> row = new TreeMap<String,String>();
+        row.put("Col1","a \"quoted\" word");
+        row.put("Col2","line\nbreak");
+        CSVWriter instance = new CSVWriter(buffer, headings);
+        instance.writeheading();
+        instance.writerow(row);
+        assertEquals( "", buffer.toString() );
+        StringBuilder expected = new StringBuilder("Col1,Col2\n");
+        int rows = 1;
+        expected.append("\"a \"\"quoted\"\" word\",\"line\nbreak\"\n");
+        while( buffer.getBuffer().length() == 0 ) {
+            instance.writerow(row);
+            expected.append("\"a \"\"quoted\"\" word\",\"line\nbreak\"\n");
+            rows += 1;
+        }
+        assertTrue( buffer.getBuffer().length() >= CSVWriter.FLUSH_SIZE );
+        instance.flush();
+        assertEquals( expected.toString(), buffer.toString() );
+        assertTrue( rows > 500 );
+    }
 }
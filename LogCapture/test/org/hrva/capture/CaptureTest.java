@@ -57,6 +57,7 @@ public class CaptureTest extends TestCase {
         shared= new Properties();
         shared.setProperty("capture.extract_filename", "test/capture.txt");
         shared.setProperty("capture.csv_filename", "test/capture.csv");
+        shared.setProperty("capture.debug_tap", "true");
         shared.setProperty("logtail.tail_status_filename","test/capture.history");
         shared.setProperty("couchpush.db_url","http://localhost:5984/couchdbkit_test");
     }
@@ -108,16 +109,14 @@ public class CaptureTest extends TestCase {
         assertEquals( 327, ext.length() );
         File csv= new File( "test/capture.csv" );
         assertEquals( 231, csv.length() );
-        File history= new File( "test/capture.history" );
-        Properties status= new Properties();
-        status.load( new FileReader(history) );
+        Properties status= instance.worker.tail.get_state( "test/capture.history" );
         assertEquals( "327", status.getProperty("size.test/sample.log") );
         assertEquals( "1", status.getProperty("seq.test/sample.log") );
 
         instance = new Capture(shared);
         instance.capture(source, seconds);
         Thread.sleep(2500); // Wait
-        status.load( new FileReader(history) );
+        status= instance.worker.tail.get_state( "test/capture.history" );
         assertEquals( "327", status.getProperty("size.test/sample.log") );
         assertEquals( "2", status.getProperty("seq.test/sample.log") );
         
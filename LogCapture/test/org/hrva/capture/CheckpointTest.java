@@ -0,0 +1,117 @@
+/*
+ * The HRT Project.
+ * Aavailable under a Creative Commons 2.0 License.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+/**
+ * Tests Checkpoint.
+ *
+ * @author slott
+ */
+public class CheckpointTest extends TestCase {
+
+    File history;
+
+    /**
+     * Constructs TestCase instance.
+     * @param testName
+     */
+    public CheckpointTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * TestCase setup.  Removes old files.
+     *
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        history= new File("test/checkpoint.history");
+        history.delete();
+    }
+
+    /**
+     * TestCase Teardown.  Removes the history.
+     * @throws Exception
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        history.delete();
+    }
+
+    /**
+     * Test of migrating an older Properties history.
+     * @throws Exception
+     */
+    public void testMigrate() throws Exception {
+        System.out.println("migrate");
+        Properties setup= new Properties();
+        setup.setProperty( "size.test/sample.log", "8" );
+        setup.setProperty( "seq.test/sample.log", "2" );
+        setup.setProperty( "size.test/second.log", "128" );
+        setup.setProperty( "seq.test/second.log", "5" );
+        setup.setProperty( "id.test/second.log", "(dev=1,ino=2)|12345|128" );
+        Writer wtr= new FileWriter( history );
+        setup.store(wtr, "Test");
+        wtr.close();
+
+        Checkpoint instance= new Checkpoint(history.getAbsoluteFile());
+        Checkpoint.Entry sample= instance.get("test/sample.log");
+        assertEquals( 8, sample.position );
+        assertEquals( 2, sample.sequence );
+        assertNull( sample.identity );
+        Checkpoint.Entry second= instance.get("test/second.log");
+        assertEquals( 128, second.position );
+        assertEquals( 5, second.sequence );
+        assertEquals( 12345, second.identity.head_crc );
+
+        instance.commit();
+        DataInputStream rdr= new DataInputStream( new FileInputStream( history ));
+        assertEquals( Checkpoint.MAGIC, rdr.readInt() );
+        rdr.close();
+        assertEquals( setup, new Checkpoint(history.getAbsoluteFile()).to_properties() );
+    }
+
+    /**
+     * Test of update, from several threads at once.
+     * @throws Exception
+     */
+    public void testUpdate_concurrent() throws Exception {
+        System.out.println("update concurrent");
+        final Checkpoint instance= new Checkpoint(history.getAbsoluteFile());
+        Thread[] updaters= new Thread[8];
+        for( int t= 0; t != updaters.length; ++t ) {
+            final String source= "test/log"+t;
+            updaters[t]= new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        for( int i= 1; i <= 50; ++i ) {
+                            instance.update(source, i*100, i, null);
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            updaters[t].start();
+        }
+        for( Thread updater : updaters ) {
+            updater.join();
+        }
+        Checkpoint reread= new Checkpoint(history.getAbsoluteFile());
+        for( int t= 0; t != updaters.length; ++t ) {
+            Checkpoint.Entry entry= reread.get("test/log"+t);
+            assertEquals( 5000, entry.position );
+            assertEquals( 50, entry.sequence );
+        }
+        assertFalse( new File("test/checkpoint.history.tmp").exists() );
+    }
+}
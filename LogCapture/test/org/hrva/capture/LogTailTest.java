@@ -5,7 +5,11 @@
 package org.hrva.capture;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
 
 /**
@@ -80,12 +84,64 @@ public class LogTailTest extends TestCase {
         assertEquals( " 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2", rdr.readLine() );
         assertEquals( "07:04:42 02/15 V.1.2236 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:36 Arrival Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221 Lat/Lon:370315618/-763461352 [Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2", rdr.readLine() );
         assertEquals( null, rdr.readLine() );
-        setup= new Properties();
-        setup.load(new FileReader( new File( status )));
+        setup= instance.get_state(status);
         assertEquals( "3", setup.getProperty( "seq.test/sample.log" ) );
         assertEquals( "327", setup.getProperty( "size.test/sample.log" ) );
     }
 
+    /**
+     * Test of run_main method, of class LogTail, with two logs.
+     * @throws Exception 
+     */
+    public void testRun_main_multiple() throws Exception {
+        System.out.println("run_main multiple");
+        File second_log_file= new File("test/second.log");
+        Writer second_log= new FileWriter( second_log_file, false );
+        second_log.write( "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n" );
+        second_log.close();
+        String[] args = { "-o", "test/sample.extract", "test/sample.log", "test/second.log" };
+        String status= "test/logtail.history";
+        new File(status).delete();
+        shared.setProperty("logtail.tail_status_filename", status);        
+        LogTail instance = new LogTail(shared);
+        instance.run_main(args);
+        File first= new File("test/sample-sample.extract");
+        File second= new File("test/sample-second.extract");
+        assertEquals( 327, first.length() );
+        assertEquals( 128, second.length() );
+        Properties setup= instance.get_state(status);
+        assertEquals( "327", setup.getProperty( "size.test/sample.log" ) );
+        assertEquals( "128", setup.getProperty( "size.test/second.log" ) );
+        first.delete();
+        second.delete();
+        second_log_file.delete();
+    }
+
+    /**
+     * Test of source_name method, of class LogTail.
+     */
+    public void testSource_name() {
+        System.out.println("source_name");
+        assertEquals( "hrtrtf-garage1.txt", LogTail.source_name("hrtrtf.txt", "/var/log/garage1.log") );
+        assertEquals( new File("test", "extract-garage1").getPath(), LogTail.source_name("test/extract", "garage1.log") );
+    }
+
+    /**
+     * Test of source_name method, of class LogTail, with logs which
+     * share a base name.
+     */
+    public void testSource_name_collision() {
+        System.out.println("source_name_collision");
+        List<String> sources = Arrays.asList("a/hrtrtf.log", "b/hrtrtf.log", "c/garage1.log");
+        assertEquals( "hrtrtf-a-hrtrtf.txt", LogTail.source_name("hrtrtf.txt", "a/hrtrtf.log", sources) );
+        assertEquals( "hrtrtf-b-hrtrtf.txt", LogTail.source_name("hrtrtf.txt", "b/hrtrtf.log", sources) );
+        assertEquals( "hrtrtf-garage1.txt", LogTail.source_name("hrtrtf.txt", "c/garage1.log", sources) );
+        // Same directory name too: fall back to the position.
+        sources = Arrays.asList("x/logs/hrtrtf.log", "y/logs/hrtrtf.log");
+        assertEquals( "hrtrtf-hrtrtf-1.txt", LogTail.source_name("hrtrtf.txt", "x/logs/hrtrtf.log", sources) );
+        assertEquals( "hrtrtf-hrtrtf-2.txt", LogTail.source_name("hrtrtf.txt", "y/logs/hrtrtf.log", sources) );
+    }
+
     /**
      * Test of tail method, of class LogTail.
      * @throws Exception 
@@ -108,12 +164,296 @@ public class LogTailTest extends TestCase {
         assertEquals( " 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2", rdr.readLine() );
         assertEquals( "07:04:42 02/15 V.1.2236 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:36 Arrival Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221 Lat/Lon:370315618/-763461352 [Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2", rdr.readLine() );
         assertEquals( null, rdr.readLine() );
-        setup= new Properties();
-        setup.load(new FileReader( new File( status )));
+        setup= instance.get_state(status);
         assertEquals( "3", setup.getProperty( "seq.test/sample.log" ) );
         assertEquals( "327", setup.getProperty( "size.test/sample.log" ) );
     }
 
+    /**
+     * Test of tail method, of class LogTail, with a mapped extract.
+     * @throws Exception 
+     */
+    public void testTail_mapped() throws Exception {
+        System.out.println("tail mapped");
+        String status= "test/logtail.history";
+        Properties setup= new Properties();
+        setup.setProperty( "size.test/sample.log", "271" );
+        setup.setProperty( "seq.test/sample.log", "2" );
+        setup.store(new FileWriter( new File( status )), "Test");
+        shared.setProperty("logtail.tail_status_filename", status);
+        shared.setProperty("logtail.map_threshold", "0");
+        LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        boolean result = instance.tail("test/sample.log", new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) {
+                assertEquals( 3, sequence );
+                byte[] data= new byte[extract.remaining()];
+                extract.get(data);
+                received.append(new String(data));
+            }
+        });
+        assertTrue(result);
+        assertEquals( "[Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2\n", received.toString() );
+    }
+
+    /**
+     * Test of tail method, of class LogTail, with a partial last line.
+     * @throws Exception 
+     */
+    public void testTail_partial_line() throws Exception {
+        System.out.println("tail partial line");
+        String status= "test/logtail.history";
+        new File(status).delete();
+        sample_log.write( "07:04:43 02/15 V.1.2233 H.0.0 MT_LOC" );
+        sample_log.flush();
+        shared.setProperty("logtail.tail_status_filename", status);
+        LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        TailSink sink= new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) {
+                byte[] data= new byte[extract.remaining()];
+                extract.get(data);
+                received.append(new String(data));
+            }
+        };
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( 327, received.length() );
+        assertEquals( 36, instance.get_bytes_behind() );
+
+        // Nothing but the partial line: no extract.
+        received.setLength(0);
+        assertFalse( instance.tail("test/sample.log", sink) );
+        
+        // The partial line is carried into the next extract.
+        sample_log.write( "ATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n" );
+        sample_log.flush();
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( "07:04:43 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n", received.toString() );
+    }
+
+    /**
+     * Test of tail method, of class LogTail, across a rename rotation.
+     * @throws Exception 
+     */
+    public void testTail_rotated() throws Exception {
+        System.out.println("tail rotated");
+        String status= "test/logtail.history";
+        new File(status).delete();
+        shared.setProperty("logtail.tail_status_filename", status);
+        LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        TailSink sink= new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) {
+                byte[] data= new byte[extract.remaining()];
+                extract.get(data);
+                received.append(new String(data));
+            }
+        };
+        assertTrue( instance.tail("test/sample.log", sink) );
+
+        // Last line written before the rotation.
+        sample_log.write( "07:04:43 last\n" );
+        sample_log.close();
+        File rotated= new File("test/sample.log.1");
+        assertTrue( sample_log_file.renameTo(rotated) );
+        sample_log= new FileWriter( sample_log_file, false );
+        sample_log.write( "07:04:44 first\n" );
+        sample_log.flush();
+
+        received.setLength(0);
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( "07:04:43 last\n", received.toString() );
+        received.setLength(0);
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( "07:04:44 first\n", received.toString() );
+        rotated.delete();
+    }
+
+    /**
+     * Test of tail method, of class LogTail, across a copytruncate
+     * rotation with a compressed copy.
+     * @throws Exception 
+     */
+    public void testTail_copytruncate_gz() throws Exception {
+        System.out.println("tail copytruncate gz");
+        String status= "test/logtail.history";
+        new File(status).delete();
+        shared.setProperty("logtail.tail_status_filename", status);
+        LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        TailSink sink= new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) {
+                byte[] data= new byte[extract.remaining()];
+                extract.get(data);
+                received.append(new String(data));
+            }
+        };
+        assertTrue( instance.tail("test/sample.log", sink) );
+
+        // Last line written before the rotation.
+        sample_log.write( "07:04:43 last\n" );
+        sample_log.close();
+        File rotated= new File("test/sample.log.1.gz");
+        InputStream copy_from= new FileInputStream(sample_log_file);
+        OutputStream copy_to= new GZIPOutputStream(new FileOutputStream(rotated));
+        byte[] data= new byte[1024];
+        for( int count= copy_from.read(data); count > 0; count= copy_from.read(data) ) {
+            copy_to.write(data, 0, count);
+        }
+        copy_from.close();
+        copy_to.close();
+        sample_log= new FileWriter( sample_log_file, false );
+        sample_log.write( "07:04:44 first line after the rotation, longer than the last\n" );
+        sample_log.flush();
+
+        received.setLength(0);
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( "07:04:43 last\n", received.toString() );
+        received.setLength(0);
+        assertTrue( instance.tail("test/sample.log", sink) );
+        assertEquals( "07:04:44 first line after the rotation, longer than the last\n", received.toString() );
+        rotated.delete();
+    }
+
+    /**
+     * Test of drain method, of class LogTail, in catch-up mode.
+     * @throws Exception 
+     */
+    public void testDrain_catch_up() throws Exception {
+        System.out.println("drain catch up");
+        String status= "test/logtail.history";
+        new File(status).delete();
+        shared.setProperty("logtail.tail_status_filename", status);
+        shared.setProperty("logtail.file_size_limit", "128");
+        shared.setProperty("logtail.catch_up", "true");
+        LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        int count = instance.drain("test/sample.log", new TailSink() {
+            public void extract(String source, long sequence, ByteBuffer extract) {
+                byte[] data= new byte[extract.remaining()];
+                extract.get(data);
+                received.append(new String(data));
+            }
+        });
+        assertEquals( 3, count );
+        assertEquals( 327, received.length() );
+        assertEquals( 0, instance.get_bytes_behind() );
+        Properties setup= instance.get_state(status);
+        assertEquals( "327", setup.getProperty( "size.test/sample.log" ) );
+    }
+
+    /**
+     * Test of follow method, of class LogTail.
+     * @throws Exception 
+     */
+    public void testFollow() throws Exception {
+        System.out.println("follow");
+        String status= "test/logtail.history";
+        Properties setup= new Properties();
+        setup.setProperty( "size.test/sample.log", "327" );
+        setup.setProperty( "seq.test/sample.log", "2" );
+        setup.store(new FileWriter( new File( status )), "Test");
+        shared.setProperty("logtail.tail_status_filename", status);
+        shared.setProperty("logtail.follow_poll_ms", "50");
+        final LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        Thread follower= new Thread( new Runnable() {
+            public void run() {
+                try {
+                    instance.follow("test/sample.log", new TailSink() {
+                        public void extract(String source, long sequence, ByteBuffer extract) {
+                            byte[] data= new byte[extract.remaining()];
+                            extract.get(data);
+                            synchronized (received) {
+                                received.append(new String(data));
+                            }
+                        }
+                    });
+                } catch (Exception ex) {
+                    fail(ex.toString());
+                }
+            }
+        });
+        follower.start();
+        sample_log.write( "07:04:43 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n" );
+        sample_log.flush();
+        for( int wait= 0; wait < 40 && received.length() == 0; ++wait ) {
+            Thread.sleep(50);
+        }
+        instance.stop();
+        follower.join(1000);
+        synchronized (received) {
+            assertEquals( "07:04:43 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n", received.toString() );
+        }
+        setup= instance.get_state(status);
+        assertEquals( "3", setup.getProperty( "seq.test/sample.log" ) );
+        assertEquals( "455", setup.getProperty( "size.test/sample.log" ) );
+    }
+
+    /**
+     * Test of follow method, of class LogTail, with a log which appears
+     * after the follow starts.  The log's creation isn't a rotation.
+     * @throws Exception 
+     */
+    public void testFollow_created() throws Exception {
+        System.out.println("testFollow_created");
+        String status= "test/follow.history";
+        final File log= new File("test/follow.log");
+        File moved= new File("test/follow.log.moved");
+        new File(status).delete();
+        log.delete();
+        shared.setProperty("logtail.tail_status_filename", status);
+        shared.setProperty("logtail.follow_poll_ms", "50");
+        final LogTail instance = new LogTail(shared);
+        final StringBuilder received= new StringBuilder();
+        Thread follower= new Thread( new Runnable() {
+            public void run() {
+                try {
+                    instance.follow(log.getPath(), new TailSink() {
+                        public void extract(String source, long sequence, ByteBuffer extract) {
+                            byte[] data= new byte[extract.remaining()];
+                            extract.get(data);
+                            synchronized (received) {
+                                received.append(new String(data));
+                            }
+                        }
+                    });
+                } catch (Exception ex) {
+                    fail(ex.toString());
+                }
+            }
+        });
+        String line1= "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n";
+        String line2= "07:04:43 02/15 V.1.2236 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n";
+        try {
+            follower.start();
+            Thread.sleep(200);
+            Writer wtr= new FileWriter(log);
+            wtr.write(line1);
+            wtr.flush();
+            for( int wait= 0; wait < 40 && received.length() < line1.length(); ++wait ) {
+                Thread.sleep(50);
+            }
+            // The same file, moved away and back, is not a rotation either.
+            assertTrue(log.renameTo(moved));
+            assertTrue(moved.renameTo(log));
+            Thread.sleep(200);
+            wtr.write(line2);
+            wtr.close();
+            for( int wait= 0; wait < 40 && received.length() < (line1+line2).length(); ++wait ) {
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+        } finally {
+            instance.stop();
+            follower.join(1000);
+            log.delete();
+            new File(status).delete();
+        }
+        synchronized (received) {
+            assertEquals( line1+line2, received.toString() );
+        }
+    }
 
     /**
      * Test of get_state method, of class LogTail.
@@ -142,6 +482,25 @@ public class LogTailTest extends TestCase {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of get_state method, of class LogTail, with a damaged history.
+     * @throws Exception 
+     */
+    public void testGet_state_damaged() throws Exception {
+        System.out.println("testGet_state_damaged");
+        String name = "test/log_tail_new.state";
+        Properties state = new Properties();
+        state.setProperty( "size.test/filename.log","2");
+        state.setProperty( "seq.test/filename.log","3");
+        LogTail instance = new LogTail(shared);
+        instance.save_state(name, state);
+        RandomAccessFile damage= new RandomAccessFile( name, "rw" );
+        damage.seek( 16 );
+        damage.write( 'X' );
+        damage.close();
+        assertEquals( new Properties(), new Checkpoint(new File(name)).to_properties() );
+    }
+
     /**
      * Test of save_state method, of class LogTail.
      * @throws Exception 
@@ -154,11 +513,9 @@ public class LogTailTest extends TestCase {
         state.setProperty( "seq.test/filename.log","3");
         LogTail instance = new LogTail(shared);
         instance.save_state(name, state);
-        BufferedReader rdr= new BufferedReader( new FileReader( new File(name)));
-        assertEquals( "#LogTail Cache", rdr.readLine() );
-        rdr.readLine(); // datestamp
-        assertEquals( "seq.test/filename.log=3", rdr.readLine() );
-        assertEquals( "size.test/filename.log=2", rdr.readLine() );
-        assertEquals( null, rdr.readLine() );        
+        DataInputStream rdr= new DataInputStream( new FileInputStream( new File(name)));
+        assertEquals( Checkpoint.MAGIC, rdr.readInt() );
+        rdr.close();
+        assertEquals( state, new Checkpoint(new File(name)).to_properties() );
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * The HRT Project.
+ * Aavailable under a Creative Commons 2.0 License.
+ */
+package org.hrva.capture;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MessageRegistry.
+ *
+ * @author slott
+ */
+public class MessageRegistryTest extends TestCase {
+
+    /**
+     * Constructs TestCase instance.
+     * @param testName
+     */
+    public MessageRegistryTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of find method, of class MessageRegistry.
+     * @throws Exception
+     */
+    public void testFind() throws Exception {
+        System.out.println("find");
+        MessageRegistry instance = MessageRegistry.standard();
+        String line = "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842";
+        int start = line.indexOf("MT_");
+        MessageRegistry.Message location = instance.find(line, start, start + "MT_LOCATION".length());
+        assertEquals(MessageRegistry.LOCATION, location.parser);
+        assertEquals(13, location.words);
+        assertNull(instance.find(line, start, start + "MT_LOC".length()));
+        assertNull(instance.find("MT_OPERATORLOGON", 0, 16));
+        assertEquals("Arrival", instance.find("MT_TIMEPOINTCROSSING", 0, 20).qualifier);
+    }
+
+    /**
+     * Test of register method, of class MessageRegistry, past the first
+     * table size.
+     * @throws Exception
+     */
+    public void testRegister() throws Exception {
+        System.out.println("register");
+        MessageRegistry instance = MessageRegistry.standard();
+        for (int i = 0; i != 40; ++i) {
+            instance.register(new MessageRegistry.Message("MT_TYPE" + i, -1, null, -1, MessageRegistry.OTHER, "feed"));
+        }
+        instance.register(new MessageRegistry.Message("MT_TYPE7", -1, null, 21, MessageRegistry.CROSSING, "others"));
+        assertEquals(42, instance.count);
+        for (int i = 0; i != 40; ++i) {
+            String name = "MT_TYPE" + i;
+            assertEquals(name, instance.find(name, 0, name.length()).name);
+        }
+        assertEquals(MessageRegistry.CROSSING, instance.find("MT_TYPE7", 0, 8).parser);
+        assertEquals(1, instance.find("MT_TYPE7", 0, 8).route);
+        assertEquals(MessageRegistry.LOCATION, instance.find("MT_LOCATION", 0, 11).parser);
+        instance.unregister("MT_TYPE7");
+        assertNull(instance.find("MT_TYPE7", 0, 8));
+        assertEquals(41, instance.count);
+        assertEquals("MT_TYPE8", instance.find("MT_TYPE8", 0, 8).name);
+    }
+
+    /**
+     * Test of configure method, of class MessageRegistry.
+     * @throws Exception
+     */
+    public void testConfigure() throws Exception {
+        System.out.println("configure");
+        java.util.Properties global = new java.util.Properties();
+        global.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Arrival", "arrivals");
+        global.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Dwell", "dwells");
+        global.setProperty("reformat.route.MT_LOCATION", "none");
+        global.setProperty("reformat.route.MT_OPERATORLOGON", "arrivals");
+        MessageRegistry instance = MessageRegistry.configure(global);
+        assertNull(instance.get("MT_LOCATION"));
+        MessageRegistry.Message arrival = instance.find("MT_TIMEPOINTCROSSING", 0, 20);
+        assertEquals("Arrival", arrival.qualifier);
+        assertEquals("arrivals", arrival.sink);
+        assertEquals("Dwell", arrival.next.qualifier);
+        assertEquals("dwells", arrival.next.sink);
+        assertNull(arrival.next.next);
+        assertEquals(MessageRegistry.OTHER, instance.get("MT_OPERATORLOGON").parser);
+        assertEquals(arrival.route, instance.get("MT_OPERATORLOGON").route);
+        assertEquals(java.util.Arrays.asList("feed", "arrivals", "dwells"), instance.sinks);
+    }
+}
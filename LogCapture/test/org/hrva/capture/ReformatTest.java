@@ -1,6 +1,7 @@
 package org.hrva.capture;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Calendar;
 import java.util.Map;
 import java.util.Properties;
@@ -13,13 +14,20 @@ import org.hrva.capture.Reformat.InvalidRow;
 /**
  * Tests Reformat class.
  * 
- * <p>Requires the <tt>test/sample.input</tt> file.</p>
+ * <p>Requires the <tt>test/sample.input</tt> file.  The parallel and
+ * buffer tests generate their own input.</p>
  * 
  * @author slott
  */
 public class ReformatTest extends TestCase {
 
     Properties shared= null;
+
+    /** A generated log, for the tests which don't need the sample. */
+    File input;
+
+    /** Output of the tests which use the generated log. */
+    File output;
     
     /**
      * Constructs TestCase.
@@ -39,6 +47,15 @@ public class ReformatTest extends TestCase {
         File output = new File("test/sample.output");
         output.delete();
         shared= new Properties();
+        input= File.createTempFile("reformat", ".input");
+        this.output= File.createTempFile("reformat", ".output");
+        Writer wtr= new FileWriter(input);
+        for (int i = 0; i != 10; ++i) {
+            wtr.write("07:04:4" + i + " 02/15 V.1.22" + i + "3 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n");
+            wtr.write("07:04:4" + i + " 02/15 V.1.22" + i + "6 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:36 Arrival Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221 Lat/Lon:370315618/-763461352 [Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2\n");
+            wtr.write("07:04:4" + i + " 02/15 V.1.35" + i + "5 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:37 Dwell:22 Rte:65 Dir:2 TP:352 Stop:69 Svc:1 Blk:203 Lat/Lon:370425333/-764286136 [Valid] Adher:-1 [Valid] Odom:1712 [Valid] DGPS:On FOM:2\n");
+        }
+        wtr.close();
     }
 
     /**
@@ -48,6 +65,8 @@ public class ReformatTest extends TestCase {
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
+        input.delete();
+        output.delete();
     }
 
     /**
@@ -72,6 +91,82 @@ public class ReformatTest extends TestCase {
         }
     }
 
+    /**
+     * Test of run_main method, of class Reformat, with parallel chunks.
+     * @throws Exception 
+     */
+    public void testRun_main_parallel() throws Exception {
+        System.out.println("run_main parallel");
+        Writer expected = new StringWriter();
+        Reformat serial = new Reformat(shared);
+        serial.include_header= true;
+        serial.reformat(new FileReader(input), expected);
+
+        shared.setProperty("reformat.chunk_size", "100");
+        shared.setProperty("reformat.threads", "2");
+        String[] args = {"-p", "-o", output.getPath(), input.getPath(), input.getPath()};
+        Reformat instance = new Reformat(shared);
+        instance.run_main(args);
+        BufferedReader result = new BufferedReader(new FileReader(output));
+        StringBuilder output = new StringBuilder();
+        for (String line = result.readLine(); line != null; line = result.readLine()) {
+            output.append(line).append('\n');
+        }
+        result.close();
+        String rows = expected.toString().substring(expected.toString().indexOf('\n') + 1);
+        assertEquals(expected.toString() + rows, output.toString());
+    }
+
+    /**
+     * Test of the worker constructor, of class Reformat, which shares
+     * the configuration of a started Reformat.
+     * @throws Exception 
+     */
+    public void testWorker() throws Exception {
+        System.out.println("worker");
+        shared.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Arrival", "arrivals");
+        Reformat parent = new Reformat(shared);
+        parent.start(new StringWriter());
+        Reformat worker = new Reformat(parent);
+        assertSame(parent.messages, worker.messages);
+        assertSame(parent.rejections, worker.rejections);
+        assertNull(worker.roll);
+        assertEquals(parent.sinks.length, worker.sinks.length);
+        assertEquals(parent.files[1].file, worker.files[1].file);
+        assertNotSame(parent.sinks[1], worker.sinks[1]);
+        assertFalse(worker.flush_sinks);
+    }
+
+    /**
+     * Test of run_main method, of class Reformat, with parallel chunks
+     * and a second sink.
+     * @throws Exception 
+     */
+    public void testRun_main_parallel_routes() throws Exception {
+        System.out.println("run_main parallel routes");
+        File arrivals = new File("test/sample.arrivals");
+        arrivals.delete();
+        shared.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Arrival", "arrivals");
+        shared.setProperty("reformat.sink.arrivals", arrivals.getPath());
+        try {
+            Reformat serial = new Reformat(shared);
+            serial.reformat(new FileReader(input), new StringWriter());
+            String expected = read(arrivals);
+            String rows = expected.substring(expected.indexOf('\n') + 1);
+            assertEquals(11, expected.split("\n").length);
+            arrivals.delete();
+
+            shared.setProperty("reformat.chunk_size", "100");
+            shared.setProperty("reformat.threads", "2");
+            String[] args = {"-p", "-o", output.getPath(), input.getPath(), input.getPath()};
+            Reformat instance = new Reformat(shared);
+            instance.run_main(args);
+            assertEquals(expected + rows, read(arrivals));
+        } finally {
+            arrivals.delete();
+        }
+    }
+
     /**
      * Test of reformat method, of class Reformat.
      * @throws Exception 
@@ -103,6 +198,48 @@ public class ReformatTest extends TestCase {
         assertEquals(result, target.toString());
     }
 
+    /**
+     * Test of reformat method, of class Reformat, from an extract in memory.
+     * @throws Exception 
+     */
+    public void testReformat_buffer() throws Exception {
+        System.out.println("testReformat_buffer");
+        Writer expected = new StringWriter();
+        Reformat instance = new Reformat(shared);
+        instance.include_header= true;
+        instance.reformat(new FileReader(input), expected);
+
+        byte[] data= new byte[(int)input.length()];
+        DataInputStream istr= new DataInputStream(new FileInputStream(input));
+        istr.readFully(data);
+        istr.close();
+        ByteBuffer source= ByteBuffer.allocateDirect(data.length);
+        source.put(data).flip();
+        Writer target = new StringWriter();
+        instance.include_header= true;
+        instance.reformat(source, target);
+        assertEquals(expected.toString(), target.toString());
+        assertEquals(0, source.position());
+    }
+
+    /**
+     * Test of parse method, of class Reformat, from a ByteLine.
+     * @throws org.hrva.hrtail.Reformat.InvalidRow 
+     */
+    public void testParse_bytes() throws InvalidRow {
+        System.out.println("testParse_bytes");
+        String text = "07:04:42 02/15 V.1.2236 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:36 Arrival Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221 Lat/Lon:370315618/-763461352 [Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2";
+        byte[] data = ("junk\n" + text + "\n").getBytes();
+        ByteLine line = new ByteLine().set(ByteBuffer.wrap(data), 5, text.length());
+        assertEquals(text, line.toString());
+        Reformat instance = new Reformat(shared);
+        VehicleReport from_bytes = new VehicleReport();
+        assertTrue(instance.parse(line, from_bytes));
+        assertEquals(instance.extract_fields(text), from_bytes.to_map());
+        assertEquals(7*3600 + 4*60 + 36, from_bytes.arrival);
+        assertEquals(370315618, from_bytes.lat);
+    }
+
     /**
      * Test of label_value method, of class Reformat.
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
@@ -117,6 +254,263 @@ public class ReformatTest extends TestCase {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of label_value method, of class Reformat, with the wrong label.
+     */
+    public void testLabel_value_bad() {
+        System.out.println("testLabel_value_bad");
+        Reformat instance = new Reformat(shared);
+        String[] words = { "Lat:370620935/-763413842", "Adher:", "Adher", "Adherence:-1", ":Adher:-1" };
+        for (String word : words) {
+            try {
+                instance.label_value(word, "Adher");
+                fail("Should have thrown exception for " + word);
+            } catch (InvalidRow ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test of get_time method, of class Reformat.
+     * @throws org.hrva.hrtail.Reformat.InvalidRow 
+     */
+    public void testGet_time() throws InvalidRow {
+        System.out.println("testGet_time");
+        Reformat instance = new Reformat(shared);
+        assertEquals("07:04:42", instance.get_time("07:04:42"));
+        assertEquals("23:59:59", instance.get_time("23:59:59"));
+        String[] words = { ":04:42", "7:04:42", "24:00:00", "07:60:00", "07-04-42", "07:04:42x" };
+        for (String word : words) {
+            try {
+                instance.get_time(word);
+                fail("Should have thrown exception for " + word);
+            } catch (InvalidRow ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test of get_date method, of class Reformat.
+     * @throws org.hrva.hrtail.Reformat.InvalidRow 
+     */
+    public void testGet_date() throws InvalidRow {
+        System.out.println("testGet_date");
+        Reformat instance = new Reformat(shared);
+        instance.now.set(Calendar.YEAR, 2012); // Force the year
+        assertEquals("2012-02-15", instance.get_date("02/15"));
+        assertEquals("2012-02-15", instance.get_date("02/15"));
+        assertEquals("2012-02-29", instance.get_date("02/29"));
+        instance.now.set(Calendar.YEAR, 2013);
+        assertEquals("2013-02-15", instance.get_date("02/15"));
+        String[] words = { "02/29", "13/01", "00/10", "2/15", "02-15", "02/32" };
+        for (String word : words) {
+            try {
+                instance.get_date(word);
+                fail("Should have thrown exception for " + word);
+            } catch (InvalidRow ex) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test of parse_lat and parse_lon methods, of class Reformat.
+     * @throws org.hrva.hrtail.Reformat.InvalidRow 
+     */
+    public void testParse_degrees() throws InvalidRow {
+        System.out.println("testParse_degrees");
+        Reformat instance = new Reformat(shared);
+        String lat_lon = "370620935/-763413842";
+        assertEquals(370620935, instance.parse_lat(lat_lon, 0, lat_lon.length()));
+        assertEquals(-763413842, instance.parse_lon(lat_lon, 0, lat_lon.length()));
+        assertEquals("-0.0000005", instance.get_lat("-5/0"));
+        assertEquals("-180.0000000", instance.get_lon("0/-1800000000"));
+        assertEquals(Reformat.OK, instance.error);
+        String[] bad = { "900000001/0", "0/1800000001", "/0", "37.06/-76.34", "0/", "0/99999999999" };
+        for (String word : bad) {
+            instance.error = Reformat.OK;
+            instance.parse_lat(word, 0, word.length());
+            instance.parse_lon(word, 0, word.length());
+            assertEquals(word, Reformat.BAD_LAT_LON, instance.error);
+        }
+    }
+
+    /**
+     * Test of check method, of class Reformat.
+     */
+    public void testCheck() {
+        System.out.println("testCheck");
+        String location = "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2";
+        String[][] lines = {
+            { location, "ok" },
+            { "07:04:42 02/15 V.1.3515 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:37 Dwell:22 Rte:65 Dir:2 TP:352 Stop:69 Svc:1 Blk:203 Lat/Lon:370425333/-764286136 [Valid] Adher:-1 [Valid] Odom:1712 [Valid] DGPS:On FOM:2", "filtered" },
+            { "random junk", "too few words" },
+            { "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842", "unknown message type" },
+            { "07:04:42 02/15 V.1.2233 H.0.0 MT_OTHER Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2", "unknown message type" },
+            { location.replace("Adher:", "Adherence:"), "bad label" },
+            { location.replace("FOM:2", "FOM:"), "bad label" },
+            { location.replace("370620935", "37.0620935"), "bad lat/lon" },
+            { location.replace("02/15", "02/30"), "bad date" },
+            { location.replace("07:04:42", ":04:42"), "bad time" },
+            { location.replace("Odom:2668", "Odom:26x8"), "bad number" },
+            { location.replace("07:04:42", "7:04:42").replace("02/15", "02/30"), "bad time" },
+            { "07:04:42 02/15 V.1.3515 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:37 Dwell:22", "filtered" },
+            { "07:04:42 02/15 V.1.3515 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:37 Arrival", "unknown message type" },
+            { "07:04:42 02/15 V.1.3515 H.0.0 MT_TIMEPOINTCROSSING", "filtered" },
+            { "07:04:42 02/15 V.1.3515 H.0.0  ", "too few words" },
+            { "07:04:42 02/15 V.1.3515 H.0.0  more", "unknown message type" },
+        };
+        Reformat instance = new Reformat(shared);
+        VehicleReport row = new VehicleReport();
+        for (String[] line : lines) {
+            assertEquals(line[0], line[1], Reformat.REASONS[instance.check(line[0], row)]);
+        }
+
+        String alias = location.replace("MT_LOCATION", "MT_LOCATION2");
+        assertEquals(Reformat.UNKNOWN_TYPE, instance.check(alias, row));
+        instance.messages.register(new MessageRegistry.Message("MT_LOCATION2", -1, null, 13, MessageRegistry.LOCATION, "feed"));
+        assertEquals(Reformat.OK, instance.check(alias, row));
+        assertEquals("V.1.2233", row.vehicle);
+    }
+
+    /**
+     * Test of the reformat.columns plan, of class Reformat.
+     * @throws Exception 
+     */
+    public void testReformat_columns() throws Exception {
+        System.out.println("testReformat_columns");
+        String location = "07:04:42 02/30 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:26x8 [Valid] DGPS:On FOM:2";
+        shared.setProperty("reformat.columns", "Vehicle, Lat,Lon ");
+        Reformat instance = new Reformat(shared);
+        assertEquals(3, instance.headings.length);
+        StringWriter target = new StringWriter();
+        instance.reformat(new StringReader(location + "\n"), target);
+        // The bad date and odometer aren't in the plan.
+        assertEquals("Vehicle,Lat,Lon\nV.1.2233,37.0620935,-76.3413842\n", target.toString());
+        assertEquals(0, instance.rejections.total());
+        assertEquals(Reformat.BAD_DATE, instance.check(location, new VehicleReport()));
+
+        shared.setProperty("reformat.columns", "Vehicle,Lat/Lon");
+        try {
+            new Reformat(shared);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test of routing message types to sinks, of class Reformat.
+     * @throws Exception 
+     */
+    public void testReformat_routes() throws Exception {
+        System.out.println("testReformat_routes");
+        File arrivals = new File("test/sample.arrivals");
+        File others = new File("test/sample.others");
+        arrivals.delete();
+        others.delete();
+        shared.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Arrival", "arrivals");
+        shared.setProperty("reformat.route.MT_TIMEPOINTCROSSING.Dwell", "arrivals");
+        shared.setProperty("reformat.route.MT_OPERATORLOGON", "others");
+        shared.setProperty("reformat.sink.arrivals", arrivals.getPath());
+        shared.setProperty("reformat.columns.arrivals", "Vehicle,Arrival,Dwell,Route,Stop");
+        shared.setProperty("reformat.sink.others", others.getPath());
+        shared.setProperty("reformat.columns.others", "Time,Vehicle,Message,Text");
+        String source = "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n"
+                + "07:04:42 02/15 V.1.3515 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:37 Dwell:22 Rte:65 Dir:2 TP:352 Stop:69 Svc:1 Blk:203 Lat/Lon:370425333/-764286136 [Valid] Adher:-1 [Valid] Odom:1712 [Valid] DGPS:On FOM:2\n"
+                + "07:04:42 02/15 V.1.2236 H.0.0 MT_TIMEPOINTCROSSING Time:07:04:36 Arrival Rte:4 Dir:2 TP:329 Stop:45 Svc:1 Blk:221 Lat/Lon:370315618/-763461352 [Valid] Adher:2 [Valid] Odom:1924 [Valid] DGPS:On FOM:2\n"
+                + "07:05:00 02/15 V.1.2236 H.0.0 MT_OPERATORLOGON Op:1234 Run:5\n";
+        try {
+            Reformat instance = new Reformat(shared);
+            instance.now.set(Calendar.YEAR, 2012); // Force the year
+            StringWriter feed = new StringWriter();
+            instance.reformat(new StringReader(source), feed);
+            assertEquals(2, feed.toString().split("\n").length);
+            assertTrue(feed.toString().contains("V.1.2233"));
+            assertEquals("Vehicle,Arrival,Dwell,Route,Stop\nV.1.3515,07:04:37,22,65,69\nV.1.2236,07:04:36,,4,45\n",
+                    read(arrivals));
+            assertEquals("Time,Vehicle,Message,Text\n07:05:00,V.1.2236,MT_OPERATORLOGON,Op:1234 Run:5\n",
+                    read(others));
+
+            // Appended, with no second heading.
+            instance.reformat(new StringReader(source), new StringWriter());
+            assertEquals(5, read(arrivals).split("\n").length);
+        } finally {
+            arrivals.delete();
+            others.delete();
+        }
+    }
+
+    /**
+     * Read a small file.
+     * @param file
+     * @return the content
+     * @throws IOException 
+     */
+    String read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream istr = new DataInputStream(new FileInputStream(file));
+        istr.readFully(data);
+        istr.close();
+        return new String(data);
+    }
+
+    /**
+     * Test of rejection counts, of class Reformat.
+     * @throws Exception 
+     */
+    public void testRejections() throws Exception {
+        System.out.println("testRejections");
+        String location = "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2";
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i != 100; ++i) {
+            source.append(location).append("\n");
+            source.append("random junk\n");
+            source.append(location.replace("02/15", "02/30")).append("\n");
+        }
+        Reformat instance = new Reformat(shared);
+        instance.include_header= false;
+        StringWriter target = new StringWriter();
+        instance.reformat(new StringReader(source.toString()), target);
+        assertEquals(100, target.toString().split("\n").length);
+        assertEquals(100, instance.rejections.get(Reformat.TOO_FEW_WORDS));
+        assertEquals(100, instance.rejections.get(Reformat.BAD_DATE));
+        assertEquals(0, instance.rejections.get(Reformat.BAD_LABEL));
+        assertEquals(200, instance.rejections.total());
+        assertEquals("{too few words=100, bad date=100}", instance.rejections.toString());
+
+        try {
+            instance.extract_fields("random junk");
+            fail("Should have thrown exception");
+        } catch (InvalidRow ex) {
+            assertEquals("too few words", ex.getMessage());
+            assertEquals(0, ex.getStackTrace().length);
+        }
+    }
+
+    /**
+     * Test of tokenize method, of class Reformat.
+     */
+    public void testTokenize() {
+        System.out.println("testTokenize");
+        String[] lines = {
+            "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2",
+            "07:04:42  02/15\tV.1.2233 ",
+            " leading and trailing  ",
+            "random junk"
+        };
+        Reformat instance = new Reformat(shared);
+        for (String line : lines) {
+            String[] words = line.split("\\s");
+            assertEquals(words.length, instance.tokenize(line));
+            for (int w = 0; w != words.length; ++w) {
+                assertEquals(words[w], instance.word(line, w));
+            }
+        }
+    }
+
     /**
      * Test of get_lat method, of class Reformat.
      * @throws org.hrva.hrtail.Reformat.InvalidRow 
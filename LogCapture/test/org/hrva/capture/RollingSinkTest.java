@@ -0,0 +1,273 @@
+/*
+ * The HRT Project.
+ * Aavailable under a Creative Commons 2.0 License.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests RollingSink.
+ *
+ * <p>Writes segments under <tt>test/rolling</tt>, and removes them.</p>
+ *
+ * @author slott
+ */
+public class RollingSinkTest extends TestCase {
+
+    File directory = new File("test/rolling");
+    String[] headings = {"Date", "Time", "Vehicle"};
+
+    /**
+     * Constructs TestCase instance.
+     * @param testName
+     */
+    public RollingSinkTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test setup.
+     * @throws Exception
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        remove(directory);
+    }
+
+    /**
+     * Test Teardown
+     * @throws Exception
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        remove(directory);
+    }
+
+    /**
+     * Remove a directory tree.
+     * @param file
+     */
+    void remove(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                remove(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Build a report.
+     * @param date
+     * @param time
+     * @param vehicle
+     * @return VehicleReport
+     */
+    VehicleReport report(String date, int time, String vehicle) {
+        VehicleReport row = new VehicleReport();
+        row.type = VehicleReport.LOCATION;
+        row.date = date;
+        row.time = time;
+        row.vehicle = vehicle;
+        return row;
+    }
+
+    /**
+     * Read a small file, uncompressing it if it's gzipped.
+     * @param file
+     * @return the content
+     * @throws IOException
+     */
+    String read(File file) throws IOException {
+        InputStream istr = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            istr = new GZIPInputStream(istr);
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = istr.read(buffer); n >= 0; n = istr.read(buffer)) {
+            data.write(buffer, 0, n);
+        }
+        istr.close();
+        return data.toString();
+    }
+
+    /**
+     * Test of configure method, of class RollingSink.
+     * @throws Exception
+     */
+    public void testConfigure() throws Exception {
+        System.out.println("configure");
+        Properties global = new Properties();
+        assertNull(RollingSink.configure(global, headings));
+        global.setProperty("reformat.roll.directory", directory.getPath());
+        global.setProperty("reformat.roll.partition", "day");
+        global.setProperty("reformat.roll.max_size", "1k");
+        RollingSink instance = RollingSink.configure(global, headings);
+        assertEquals("hrtrtf", instance.prefix);
+        assertFalse(instance.hourly);
+        assertEquals(1024, instance.max_size);
+        assertFalse(instance.compress);
+        // The date and time are parsed for partitioning.
+        assertTrue(VehicleReport.wants(instance.plan, VehicleReport.TIME));
+        global.setProperty("reformat.roll.partition", "minute");
+        try {
+            RollingSink.configure(global, headings);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test of writerow method, of class RollingSink, partitioned by hour.
+     * @throws Exception
+     */
+    public void testWriterow_hourly() throws Exception {
+        System.out.println("testWriterow_hourly");
+        RollingSink instance = new RollingSink(headings, directory, "feed", true, 1024 * 1024, false);
+        StringWriter target = new StringWriter();
+        instance.start(target);
+        instance.writerow(report("2012-02-15", 7 * 3600 + 10, "V.1.1"));
+        instance.writerow(report("2012-02-15", 7 * 3600 + 20, "V.1.2"));
+        instance.writerow(report("2012-02-15", 8 * 3600, "V.1.3"));
+        instance.writerow(report("2012-02-16", 8 * 3600, "V.1.4"));
+        instance.flush();
+        assertEquals(4, target.toString().split("\n").length);
+        File day1 = new File(directory, "2012-02-15");
+        assertEquals("Date,Time,Vehicle\n2012-02-15,07:00:10,V.1.1\n2012-02-15,07:00:20,V.1.2\n",
+                read(new File(day1, "feed-07-000.csv")));
+        assertEquals("Date,Time,Vehicle\n2012-02-15,08:00:00,V.1.3\n",
+                read(new File(day1, "feed-08-000.csv")));
+        // The open segment is flushed, and can be read.
+        assertEquals("Date,Time,Vehicle\n2012-02-16,08:00:00,V.1.4\n",
+                read(new File(directory, "2012-02-16/feed-08-000.csv")));
+
+        // A late report for a closed partition goes to the current segment.
+        instance.writerow(report("2012-02-15", 7 * 3600 + 30, "V.1.5"));
+        instance.close();
+        assertEquals("Date,Time,Vehicle\n2012-02-16,08:00:00,V.1.4\n2012-02-15,07:00:30,V.1.5\n",
+                read(new File(directory, "2012-02-16/feed-08-000.csv")));
+        assertFalse(new File(day1, "feed-07-001.csv").exists());
+    }
+
+    /**
+     * Test of writerow method, of class RollingSink, with reports which
+     * straddle an hour.
+     * @throws Exception
+     */
+    public void testWriterow_straddle() throws Exception {
+        System.out.println("testWriterow_straddle");
+        RollingSink instance = new RollingSink(headings, directory, "feed", true, 1024 * 1024, false);
+        instance.start(null);
+        for (int i = 0; i != 4; ++i) {
+            instance.writerow(report("2012-02-15", 11 * 3600 - 1, "V.1." + i));
+            instance.writerow(report("2012-02-15", 11 * 3600, "V.2." + i));
+        }
+        instance.writerow(report(null, 11 * 3600 + 1, "V.3.0"));
+        instance.close();
+        File day = new File(directory, "2012-02-15");
+        String[] names = day.list();
+        Arrays.sort(names);
+        assertEquals(Arrays.asList("feed-10-000.csv", "feed-11-000.csv"), Arrays.asList(names));
+        assertEquals(1 + 1, read(new File(day, names[0])).split("\n").length);
+        assertEquals(1 + 8, read(new File(day, names[1])).split("\n").length);
+        assertFalse(new File(directory, RollingSink.UNKNOWN).exists());
+    }
+
+    /**
+     * Test of size rollover and compression, of class RollingSink.
+     * @throws Exception
+     */
+    public void testWriterow_size() throws Exception {
+        System.out.println("testWriterow_size");
+        RollingSink instance = new RollingSink(headings, directory, "feed", false, 100, true);
+        instance.start(null);
+        for (int i = 0; i != 10; ++i) {
+            instance.writerow(report("2012-02-15", 7 * 3600, "V.1." + i));
+        }
+        instance.close();
+        File day = new File(directory, "2012-02-15");
+        String[] names = day.list();
+        Arrays.sort(names);
+        assertEquals(3, names.length);
+        assertEquals("feed-000.csv.gz", names[0]);
+        assertEquals("feed-002.csv.gz", names[2]);
+        String first = read(new File(day, names[0]));
+        assertTrue(first.startsWith("Date,Time,Vehicle\n2012-02-15,07:00:00,V.1.0\n"));
+        assertTrue(first.length() >= 100);
+        assertTrue(read(new File(day, names[2])).startsWith("Date,Time,Vehicle\n"));
+    }
+
+    /**
+     * Test of binary segments, of class RollingSink.
+     * @throws Exception
+     */
+    public void testWriterow_binary() throws Exception {
+        System.out.println("testWriterow_binary");
+        RollingSink instance = new RollingSink(headings, directory, "feed", true, 1024 * 1024, false, true);
+        assertEquals(VehicleReport.ALL, instance.plan);
+        instance.start(null);
+        instance.writerow(report("2012-02-15", 7 * 3600 + 10, "V.1.1"));
+        instance.writerow(report("2012-02-15", 8 * 3600 + 20, "V.1.2"));
+        instance.close();
+        File segment = new File(directory, "2012-02-15/feed-08-000.seg");
+        assertEquals(1, SegmentReader.footer(segment).blocks.size());
+        SegmentReader reader = new SegmentReader(new FileInputStream(segment));
+        VehicleReport row = new VehicleReport();
+        assertTrue(reader.read(row));
+        assertEquals("V.1.2", row.vehicle);
+        assertEquals(8 * 3600 + 20, row.time);
+        assertFalse(reader.read(row));
+        reader.close();
+    }
+
+    /**
+     * Test of Reformat with a rolling feed.
+     * @throws Exception
+     */
+    public void testReformat_rolling() throws Exception {
+        System.out.println("testReformat_rolling");
+        Properties global = new Properties();
+        global.setProperty("reformat.roll.directory", directory.getPath());
+        global.setProperty("reformat.roll.prefix", "hrtrtf");
+        global.setProperty("reformat.columns", "Vehicle,Adherence");
+        String source = "07:04:42 02/15 V.1.2233 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:-1 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n"
+                + "08:04:42 02/15 V.1.2234 H.0.0 MT_LOCATION Lat/Lon:370620935/-763413842 [Valid] Adher:3 [Valid] Odom:2668 [Valid] DGPS:On FOM:2\n";
+        Reformat instance = new Reformat(global);
+        instance.now.set(Calendar.YEAR, 2012); // Force the year
+        StringWriter feed = new StringWriter();
+        instance.reformat(new StringReader(source), feed);
+        assertEquals("Vehicle,Adherence\nV.1.2233,-1\nV.1.2234,3\n", feed.toString());
+        assertEquals("Vehicle,Adherence\nV.1.2233,-1\n",
+                read(new File(directory, "2012-02-15/hrtrtf-07-000.csv")));
+
+        // The open segment carries on if the next report is in its partition.
+        instance.reformat(new StringReader(source.substring(source.indexOf("08:"))), null);
+        assertEquals("Vehicle,Adherence\nV.1.2234,3\nV.1.2234,3\n",
+                read(new File(directory, "2012-02-15/hrtrtf-08-000.csv")));
+
+        // A late report goes to the open segment.
+        instance.reformat(new StringReader(source.substring(0, source.indexOf("08:"))), null);
+        assertEquals("Vehicle,Adherence\nV.1.2234,3\nV.1.2234,3\nV.1.2233,-1\n",
+                read(new File(directory, "2012-02-15/hrtrtf-08-000.csv")));
+
+        // Once closed, the feed starts new segments.
+        instance.roll.close();
+        instance.reformat(new StringReader(source), null);
+        instance.roll.close();
+        assertEquals("Vehicle,Adherence\nV.1.2233,-1\n",
+                read(new File(directory, "2012-02-15/hrtrtf-07-001.csv")));
+        assertEquals("Vehicle,Adherence\nV.1.2234,3\n",
+                read(new File(directory, "2012-02-15/hrtrtf-08-001.csv")));
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * The HRT Project.
+ * Aavailable under a Creative Commons 2.0 License.
+ */
+package org.hrva.capture;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests SegmentWriter and SegmentReader.
+ *
+ * <p>Writes <tt>test/sample.seg</tt>, and removes it.</p>
+ *
+ * @author slott
+ */
+public class SegmentReaderTest extends TestCase {
+
+    File file = new File("test/sample.seg");
+    String[] columns = VehicleReport.COLUMNS;
+
+    /**
+     * Constructs TestCase instance.
+     * @param testName
+     */
+    public SegmentReaderTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test Teardown
+     * @throws Exception
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+    }
+
+    /**
+     * Build some reports: mostly locations from a few dozen vehicles,
+     * with arrivals, dwells and other messages mixed in.
+     * @param count
+     * @return the reports
+     */
+    VehicleReport[] reports(int count) {
+        Random random = new Random(42);
+        VehicleReport[] result = new VehicleReport[count];
+        for (int i = 0; i != count; ++i) {
+            VehicleReport row = new VehicleReport();
+            row.type = i % 10 == 0 ? VehicleReport.ARRIVAL : i % 29 == 0 ? VehicleReport.DWELL
+                    : i % 31 == 0 ? VehicleReport.OTHER : VehicleReport.LOCATION;
+            row.date = i < count / 2 ? "2012-02-15" : "2012-02-16";
+            row.time = 7 * 3600 + i / 4;
+            row.vehicle = "V.1." + (2200 + random.nextInt(40));
+            row.h = "H.0.0";
+            if (row.type == VehicleReport.OTHER) {
+                row.message = "MT_OPERATORLOGON";
+                row.rest = "Op:" + random.nextInt(9999) + " Run:5";
+            } else {
+                row.lat = 370000000 + random.nextInt(1000000);
+                row.lon = -763000000 - random.nextInt(1000000);
+                row.location_valid = random.nextInt(10) != 0;
+                row.adherence = random.nextInt(21) - 10;
+                row.adherence_valid = true;
+                row.odometer = random.nextInt(5000);
+                row.odometer_valid = true;
+                row.dgps = "On";
+                row.fom = 2;
+            }
+            if (row.type == VehicleReport.ARRIVAL || row.type == VehicleReport.DWELL) {
+                row.arrival = row.time - random.nextInt(10);
+                row.route = random.nextInt(100);
+                row.direction = 1 + random.nextInt(2);
+                row.tp = random.nextInt(400);
+                row.stop = random.nextInt(100);
+                row.svc = 1;
+                row.blk = random.nextInt(300);
+            }
+            if (row.type == VehicleReport.DWELL) {
+                row.dwell = random.nextInt(60);
+            }
+            result[i] = row;
+        }
+        return result;
+    }
+
+    /**
+     * The CSV of some reports, with every column.
+     * @param rows
+     * @return CSV text
+     * @throws IOException
+     */
+    String csv(VehicleReport[] rows) throws IOException {
+        StringWriter buffer = new StringWriter();
+        CSVWriter csvwtr = new CSVWriter(buffer, columns);
+        for (VehicleReport row : rows) {
+            csvwtr.writerow(row);
+        }
+        csvwtr.flush();
+        return buffer.toString();
+    }
+
+    /**
+     * Read all the reports from a reader.
+     * @param segment
+     * @return the reports
+     * @throws IOException
+     */
+    VehicleReport[] read_all(SegmentReader segment) throws IOException {
+        List<VehicleReport> rows = new ArrayList<VehicleReport>();
+        VehicleReport row = new VehicleReport();
+        while (segment.read(row)) {
+            rows.add(row);
+            row = new VehicleReport();
+        }
+        segment.close();
+        return rows.toArray(new VehicleReport[rows.size()]);
+    }
+
+    /**
+     * Test of write and read, a round trip through a segment.
+     * @throws Exception
+     */
+    public void testRead() throws Exception {
+        System.out.println("testRead");
+        VehicleReport[] rows = reports(10000);
+        SegmentWriter instance = new SegmentWriter(new FileOutputStream(file));
+        for (VehicleReport row : rows) {
+            instance.write(row);
+        }
+        instance.close();
+        VehicleReport[] result = read_all(new SegmentReader(new FileInputStream(file)));
+        assertEquals(rows.length, result.length);
+        assertEquals(csv(rows), csv(result));
+        assertEquals("Op:", result[31].rest.substring(0, 3));
+        assertEquals(rows[20].arrival, result[20].arrival);
+
+        // Much smaller than the CSV.
+        long csv_size = csv(rows).length();
+        assertTrue("segment " + file.length() + " csv " + csv_size, file.length() * 5 < csv_size);
+    }
+
+    /**
+     * Test of the footer index, and reading from a block.
+     * @throws Exception
+     */
+    public void testFooter() throws Exception {
+        System.out.println("testFooter");
+        VehicleReport[] rows = reports(10000);
+        SegmentWriter instance = new SegmentWriter(new FileOutputStream(file));
+        for (VehicleReport row : rows) {
+            instance.write(row);
+        }
+        instance.close();
+        SegmentReader.Footer footer = SegmentReader.footer(file);
+        assertEquals(3, footer.blocks.size());
+        SegmentWriter.Block block = footer.blocks.get(2);
+        assertEquals(10000 - 2 * SegmentWriter.BLOCK_ROWS, block.rows);
+        assertEquals(rows[2 * SegmentWriter.BLOCK_ROWS].time, block.first_time);
+        assertEquals(rows[9999].time, block.last_time);
+        assertEquals("2012-02-16", block.date);
+        assertEquals("V.1.", footer.words.get(0).substring(0, 4));
+
+        VehicleReport[] result = read_all(new SegmentReader(file, footer, 2));
+        assertEquals(block.rows, result.length);
+        VehicleReport[] expected = new VehicleReport[block.rows];
+        System.arraycopy(rows, 2 * SegmentWriter.BLOCK_ROWS, expected, 0, block.rows);
+        assertEquals(csv(expected), csv(result));
+    }
+
+    /**
+     * Test of reading a segment which was flushed but never closed.
+     * @throws Exception
+     */
+    public void testRead_unclosed() throws Exception {
+        System.out.println("testRead_unclosed");
+        VehicleReport[] rows = reports(100);
+        OutputStream out = new FileOutputStream(file);
+        SegmentWriter instance = new SegmentWriter(out);
+        for (VehicleReport row : rows) {
+            instance.write(row);
+            if (row.time % 7 == 0) {
+                instance.flush();
+            }
+        }
+        instance.flush();
+        out.close();
+        try {
+            SegmentReader.footer(file);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertEquals(csv(rows), csv(read_all(new SegmentReader(new FileInputStream(file)))));
+    }
+
+    /**
+     * Test of reading a segment whose last block was only partly written.
+     * @throws Exception
+     */
+    public void testRead_truncated() throws Exception {
+        System.out.println("testRead_truncated");
+        VehicleReport[] rows = reports(100);
+        VehicleReport[] first = new VehicleReport[50];
+        System.arraycopy(rows, 0, first, 0, first.length);
+        OutputStream out = new FileOutputStream(file);
+        SegmentWriter instance = new SegmentWriter(out);
+        for (int i = 0; i != rows.length; ++i) {
+            instance.write(rows[i]);
+            if (i == first.length - 1) {
+                instance.flush();
+            }
+        }
+        long complete = file.length();
+        instance.flush();
+        out.close();
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(data);
+        in.close();
+        assertTrue(data.length > complete + 2);
+        // Cut in the block's count, its length, and partway through its data.
+        for (long cut = complete; cut != data.length; ++cut) {
+            InputStream partial = new ByteArrayInputStream(data, 0, (int) cut);
+            assertEquals("cut at " + cut, csv(first), csv(read_all(new SegmentReader(partial))));
+        }
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import com.fourspaces.couchdb.util.JSONUtils;
 import static com.fourspaces.couchdb.util.JSONUtils.urlEncodePath;
@@ -26,6 +28,10 @@ import net.sf.json.util.JSONStringer;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
 
 /**
  * This represents a particular database on the CouchDB server
@@ -244,6 +250,62 @@ public class Database {
     else {
       resp = session.put(name + "/" + urlEncodePath(docId), doc.getJSONObject().toString());
     }
+    saved(doc, docId, resp);
+  }
+
+  /**
+   * Save a document with a file attached inline, in one request.
+   * <p/>
+   * The file is base64 encoded as it's sent, and is never held in memory.
+   * The document is given its id and rev, but the attachment isn't added to it.
+   *
+   * @param doc the document
+   * @param fname attachment name
+   * @param ctype attachment content type
+   * @param attachment file with the attachment body
+   */
+  public void saveDocument(Document doc, String fname, String ctype, File attachment) throws IOException {
+    saveDocument(doc, new InlineAttachmentEntity(doc, fname, ctype, attachment));
+  }
+
+  /**
+   * Save a document with an attachment already in memory, in one request.
+   * <p/>
+   * The attachment is base64 encoded as it's sent.
+   * The document is given its id and rev, but the attachment isn't added to it.
+   *
+   * @param doc the document
+   * @param fname attachment name
+   * @param ctype attachment content type
+   * @param attachment attachment body
+   */
+  public void saveDocument(Document doc, String fname, String ctype, byte[] attachment) throws IOException {
+    saveDocument(doc, new InlineAttachmentEntity(doc, fname, ctype, attachment));
+  }
+
+  private void saveDocument(Document doc, InlineAttachmentEntity entity) throws IOException {
+    String docId = doc.getId();
+    CouchResponse resp;
+    if (docId == null || docId.equals("")) {
+      resp = session.post(name, entity);
+    }
+    else {
+      resp = session.put(name + "/" + urlEncodePath(docId), entity);
+    }
+    saved(doc, docId, resp);
+  }
+
+  /**
+   * Set a saved document's id and rev from the response.
+   *
+   * @param doc the document
+   * @param docId the id it was saved with, if any
+   * @param resp the response, or null if there wasn't one
+   */
+  private void saved(Document doc, String docId, CouchResponse resp) throws IOException {
+    if (resp == null) {
+      throw new IOException("No response saving document " + docId);
+    }
 
     if (resp.isOk()) {
       try {
@@ -420,4 +482,69 @@ public class Database {
         CouchResponse resp = session.put(name + "/" + urlEncodePath(id) + "/" + fname + "?rev=" + urlEncodePath(rev), ctype, attachment);
         return new Document(resp.getBodyAsJSONObject());
     }
+
+  /**
+   * Puts attachment to a doc, streaming it from a file
+   *
+   * @param id document id
+   * @param rev document revision
+   * @param fname attachment name
+   * @param ctype content type
+   * @param attachment file with the attachment body
+   * @return the response: ok, id and rev
+   */
+    public Document putAttachment(String id, String rev, String fname, String ctype, File attachment) throws IOException {
+        return putAttachment(id, rev, fname, ctype, new FileEntity(attachment, ctype));
+    }
+
+  /**
+   * Puts attachment to a doc, streaming it from an InputStream.
+   * If the length isn't known, the attachment is sent with chunked transfer encoding.
+   *
+   * @param id document id
+   * @param rev document revision
+   * @param fname attachment name
+   * @param ctype content type
+   * @param attachment stream of the attachment body; it's read to the end, but not closed
+   * @param length the number of bytes, or -1 if it isn't known
+   * @return the response: ok, id and rev
+   */
+    public Document putAttachment(String id, String rev, String fname, String ctype, InputStream attachment, long length) throws IOException {
+        InputStreamEntity entity = new InputStreamEntity(attachment, length);
+        entity.setChunked(length < 0);
+        return putAttachment(id, rev, fname, ctype, entity);
+    }
+
+  /**
+   * Puts attachment to a doc from bytes already in memory
+   *
+   * @param id document id
+   * @param rev document revision
+   * @param fname attachment name
+   * @param ctype content type
+   * @param attachment attachment body
+   * @return the response: ok, id and rev
+   */
+    public Document putAttachment(String id, String rev, String fname, String ctype, byte[] attachment) throws IOException {
+        return putAttachment(id, rev, fname, ctype, new ByteArrayEntity(attachment));
+    }
+
+  /**
+   * Puts attachment to a doc from an entity
+   *
+   * @param id document id
+   * @param rev document revision
+   * @param fname attachment name
+   * @param ctype content type
+   * @param entity the attachment body
+   * @return the response: ok, id and rev
+   */
+    private Document putAttachment(String id, String rev, String fname, String ctype, AbstractHttpEntity entity) throws IOException {
+        entity.setContentType(ctype);
+        CouchResponse resp = session.put(name + "/" + urlEncodePath(id) + "/" + fname + "?rev=" + urlEncodePath(rev), entity);
+        if (resp == null) {
+            throw new IOException("No response putting attachment " + fname + " to " + id);
+        }
+        return new Document(resp.getBodyAsJSONObject());
+    }
 }
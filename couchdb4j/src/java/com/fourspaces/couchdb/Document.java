@@ -17,6 +17,7 @@
 package com.fourspaces.couchdb;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
@@ -25,7 +26,9 @@ import java.util.Set;
 import com.fourspaces.couchdb.util.JSONUtils;
 import net.sf.json.*;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -208,6 +211,35 @@ public class Document implements Map {
 
 	}
 	
+	/**
+	 * Add an inline attachment to this document.  If an attachment already exists with the given
+	 * name it is overwritten.
+	 * <p>
+	 * The content is base64 encoded into the document's _attachments, so saving the document
+	 * creates it and its attachments in a single request.
+	 * <p>
+	 * This isn't persisted until the document is saved.
+	 * 
+	 * @param name attachment name
+	 * @param ctype content type
+	 * @param content attachment body
+	 */
+	public void addAttachment(String name, String ctype, byte[] content) {
+		JSONObject attachment = new JSONObject();
+		attachment.put("content_type", ctype);
+		try {
+			attachment.put("data", new String(Base64.encodeBase64(content), "US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			log.error(ExceptionUtils.getStackTrace(e));
+		}
+		JSONObject attachments = object.optJSONObject("_attachments");
+		if (attachments == null) {
+			attachments = new JSONObject();
+		}
+		attachments.put(name, attachment);
+		object.put("_attachments", attachments);
+	}
+	
 	/**
 	 * Removes a view from this document.
 	 * <p>
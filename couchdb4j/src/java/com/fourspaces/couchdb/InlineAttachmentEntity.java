@@ -0,0 +1,172 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A document with one attachment inline, written as it's sent.
+ * <p>
+ * The document's JSON is written with the attachment's base64 data in its
+ * _attachments, so the document and attachment are created by a single request.
+ * The attachment is read and encoded a block at a time while it's written to the
+ * connection; neither it nor its base64 text is ever held in memory whole.
+ * The length is known beforehand, so the request isn't chunked.
+ * <p>
+ * The document itself isn't changed.
+ *
+ * @see Database#saveDocument(Document, String, String, File)
+ */
+class InlineAttachmentEntity extends AbstractHttpEntity {
+	private static final String CHARSET = "UTF-8";
+	
+	/** Bytes read and encoded at a time; a multiple of 3, so only the last block is padded. */
+	private static final int BLOCK = 3 * 16 * 1024;
+
+	private final byte[] head;
+	private final byte[] tail;
+	private final File file;
+	private final byte[] content;
+	private final long length;
+	
+	/**
+	 * Stream the attachment from a file.
+	 * @param doc the document
+	 * @param fname attachment name
+	 * @param ctype attachment content type
+	 * @param file the attachment body
+	 * @throws UnsupportedEncodingException
+	 */
+	InlineAttachmentEntity(Document doc, String fname, String ctype, File file) throws UnsupportedEncodingException {
+		this(doc, fname, ctype, file, null, file.length());
+	}
+
+	/**
+	 * Send an attachment already in memory.
+	 * @param doc the document
+	 * @param fname attachment name
+	 * @param ctype attachment content type
+	 * @param content the attachment body
+	 * @throws UnsupportedEncodingException
+	 */
+	InlineAttachmentEntity(Document doc, String fname, String ctype, byte[] content) throws UnsupportedEncodingException {
+		this(doc, fname, ctype, null, content, content.length);
+	}
+
+	private InlineAttachmentEntity(Document doc, String fname, String ctype, File file, byte[] content, long length) throws UnsupportedEncodingException {
+		this.file = file;
+		this.content = content;
+		this.length = length;
+		// The document, less its closing brace, then the attachment up to its data.
+		JSONObject fields = JSONObject.fromObject(doc.getJSONObject());
+		JSONObject attachments = fields.optJSONObject("_attachments");
+		fields.remove("_attachments");
+		if (attachments != null) {
+			attachments.remove(fname);
+		}
+		StringBuilder json = new StringBuilder(fields.toString());
+		json.setLength(json.length() - 1);
+		if (!fields.isEmpty()) {
+			json.append(',');
+		}
+		json.append("\"_attachments\":");
+		if (attachments != null && !attachments.isEmpty()) {
+			json.append(attachments.toString());
+			json.setCharAt(json.length() - 1, ',');
+		} else {
+			json.append('{');
+		}
+		json.append(JSONUtils.quote(fname)).append(":{\"content_type\":").append(JSONUtils.quote(ctype));
+		json.append(",\"data\":\"");
+		head = json.toString().getBytes(CHARSET);
+		tail = "\"}}}".getBytes(CHARSET);
+		setContentType("application/json");
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return head.length + 4 * ((length + 2) / 3) + tail.length;
+	}
+
+	/**
+	 * The whole request body, built in memory.  This is only for debugging;
+	 * the body is sent by writeTo.
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream((int) getContentLength());
+		writeTo(body);
+		return new ByteArrayInputStream(body.toByteArray());
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(head);
+		InputStream in = file != null ? new FileInputStream(file) : new ByteArrayInputStream(content);
+		try {
+			byte[] block = new byte[BLOCK];
+			long remaining = length;
+			while (remaining > 0) {
+				int size = (int) Math.min(BLOCK, remaining);
+				byte[] chunk = size == BLOCK ? block : new byte[size];
+				if (fill(in, chunk) != size) {
+					throw new IOException("Attachment shorter than " + length + " bytes");
+				}
+				out.write(Base64.encodeBase64(chunk));
+				remaining -= size;
+			}
+		} finally {
+			in.close();
+		}
+		out.write(tail);
+		out.flush();
+	}
+
+	/**
+	 * Read a whole block, unless the stream ends first.
+	 * @return the number of bytes read
+	 */
+	private static int fill(InputStream in, byte[] block) throws IOException {
+		int filled = 0;
+		while (filled < block.length) {
+			int n = in.read(block, filled, block.length - filled);
+			if (n < 0) {
+				break;
+			}
+			filled += n;
+		}
+		return filled;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -21,6 +21,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -31,12 +32,17 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
@@ -48,9 +54,12 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.AllClientPNames;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
 
 /**
  * The Session is the main connection to the CouchDB instance.  However, you'll only use the Session
@@ -62,6 +71,10 @@ import org.apache.http.message.BasicHeader;
  * Ex usage: <br>
  * Session session = new Session(host,port);
  * Database db = session.getDatabase("dbname");
+ * <p>
+ * Connections are pooled and kept alive between requests, so a long-lived Session saves a TCP
+ * (and SSL) handshake on every request.  Call startIdleConnectionMonitor() to close connections
+ * the server has probably dropped, and shutdown() when the Session is no longer needed.
  * 
  * @author mbreese
  * @author brennanjubb - HTTP-Auth username/pass
@@ -79,10 +92,13 @@ public class Session {
 	protected final boolean secure;
 	protected final boolean usesAuth;
 	
-	protected CouchResponse lastResponse;
+	protected volatile CouchResponse lastResponse;
 	
 	protected HttpClient httpClient;
     protected HttpParams httpParams;
+	protected ClientConnectionManager connManager;
+	
+	private IdleConnectionMonitor idleMonitor;
 
 	/**
 	 * Constructor for obtaining a Session with an HTTP-AUTH username/password and (optionally) a secure connection
@@ -94,33 +110,210 @@ public class Session {
 	 * @param secure  - use an SSL connection?
 	 */
 	public Session(String host, int port, String user, String pass, boolean usesAuth, boolean secure) {
-		this.host = host;
-		this.port = port;
-		this.user = user;
-		this.pass = pass;
-		this.usesAuth = usesAuth;
-		this.secure = secure;
+		this(new Builder(host, port).credentials(user, pass, usesAuth).secure(secure));
+	}
+
+	/**
+	 * Constructor for obtaining a Session configured by a Builder
+	 * @param builder
+	 */
+	protected Session(Builder builder) {
+		this.host = builder.host;
+		this.port = builder.port;
+		this.user = builder.user;
+		this.pass = builder.pass;
+		this.usesAuth = builder.usesAuth;
+		this.secure = builder.secure;
 
         httpParams = new BasicHttpParams();
+        // The pool reads its limits when it's built.
+        ConnManagerParams.setMaxTotalConnections(httpParams, builder.maxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(builder.maxConnectionsPerRoute));
+        ConnManagerParams.setTimeout(httpParams, builder.poolTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(httpParams, builder.staleChecking);
         SchemeRegistry schemeRegistry = new SchemeRegistry();
 
         schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
         schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 
-        ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+        connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
 		DefaultHttpClient defaultClient = new DefaultHttpClient(connManager, httpParams);
 		if (user != null) {
 			defaultClient.getCredentialsProvider().setCredentials( AuthScope.ANY, new UsernamePasswordCredentials(user, pass) );
 		}
+		if (builder.keepAlive == 0) {
+			// HttpClient takes a keep-alive of 0 as no limit, so don't reuse connections at all.
+			defaultClient.setReuseStrategy(new NoConnectionReuseStrategy());
+		} else if (builder.keepAlive > 0) {
+			defaultClient.setKeepAliveStrategy(new KeepAliveStrategy(builder.keepAlive));
+		}
 		
 		this.httpClient = defaultClient;
 
 		setUserAgent("couchdb4j");
-		setSocketTimeout( (30 * 1000) );
-		setConnectionTimeout( (15 * 1000) );
+		setSocketTimeout(builder.socketTimeout);
+		setConnectionTimeout(builder.connectionTimeout);
 		
 	}
 
+	/**
+	 * Builds a Session, with the connection pool, keep-alive and timeouts configured.
+	 * <p>
+	 * Ex usage: <br>
+	 * Session session = new Session.Builder(host,port).maxConnectionsPerRoute(4).socketTimeout(10000).build();
+	 * <p>
+	 * Unless they're set, the pool allows 2 connections per route and 20 in all, connections are
+	 * kept alive as long as the server allows, stale connections are checked for, and the connect
+	 * and read timeouts are 15 and 30 seconds.
+	 */
+	public static class Builder {
+		private final String host;
+		private final int port;
+		private String user = null;
+		private String pass = null;
+		private boolean usesAuth = false;
+		private boolean secure = false;
+		private int maxConnectionsPerRoute = ConnPerRouteBean.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+		private int maxTotalConnections = ConnManagerParams.DEFAULT_MAX_TOTAL_CONNECTIONS;
+		private long keepAlive = -1;
+		private boolean staleChecking = true;
+		private int connectionTimeout = 15 * 1000;
+		private int socketTimeout = 30 * 1000;
+		private long poolTimeout = 0;
+
+		/**
+		 * @param host
+		 * @param port
+		 */
+		public Builder(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * HTTP-AUTH username/password
+		 * This isn't supported by CouchDB - you need a proxy in front to use this
+		 * @param user
+		 * @param pass
+		 * @param usesAuth
+		 * @return this Builder
+		 */
+		public Builder credentials(String user, String pass, boolean usesAuth) {
+			this.user = user;
+			this.pass = pass;
+			this.usesAuth = usesAuth;
+			return this;
+		}
+
+		/**
+		 * Use an SSL connection?
+		 * This isn't supported by CouchDB - you need a proxy in front to use this
+		 * @param secure
+		 * @return this Builder
+		 */
+		public Builder secure(boolean secure) {
+			this.secure = secure;
+			return this;
+		}
+
+		/**
+		 * The most connections to the server at once
+		 * @param max
+		 * @return this Builder
+		 */
+		public Builder maxConnectionsPerRoute(int max) {
+			this.maxConnectionsPerRoute = max;
+			return this;
+		}
+
+		/**
+		 * The most connections in the pool
+		 * @param max
+		 * @return this Builder
+		 */
+		public Builder maxTotalConnections(int max) {
+			this.maxTotalConnections = max;
+			return this;
+		}
+
+		/**
+		 * How long an idle connection is kept alive, at most.  A shorter Keep-Alive timeout
+		 * from the server is still honored.  Negative means as long as the server allows;
+		 * zero means connections aren't kept alive, and each is closed after its request.
+		 * @param milliseconds
+		 * @return this Builder
+		 */
+		public Builder keepAlive(long milliseconds) {
+			this.keepAlive = milliseconds;
+			return this;
+		}
+
+		/**
+		 * Check that a pooled connection hasn't been closed by the server before using it
+		 * @param staleChecking
+		 * @return this Builder
+		 */
+		public Builder staleChecking(boolean staleChecking) {
+			this.staleChecking = staleChecking;
+			return this;
+		}
+
+		/**
+		 * How long to wait to connect; zero waits forever
+		 * @param milliseconds
+		 * @return this Builder
+		 */
+		public Builder connectionTimeout(int milliseconds) {
+			this.connectionTimeout = milliseconds;
+			return this;
+		}
+
+		/**
+		 * How long to wait for data from the server; zero waits forever
+		 * @param milliseconds
+		 * @return this Builder
+		 */
+		public Builder socketTimeout(int milliseconds) {
+			this.socketTimeout = milliseconds;
+			return this;
+		}
+
+		/**
+		 * How long to wait for a connection from the pool when they're all in use; zero waits forever
+		 * @param milliseconds
+		 * @return this Builder
+		 */
+		public Builder poolTimeout(long milliseconds) {
+			this.poolTimeout = milliseconds;
+			return this;
+		}
+
+		/**
+		 * @return the new Session
+		 */
+		public Session build() {
+			return new Session(this);
+		}
+	}
+
+	/**
+	 * Keeps a connection alive for the server's Keep-Alive timeout, but no longer than the
+	 * configured time.
+	 */
+	static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		private final ConnectionKeepAliveStrategy server = new DefaultConnectionKeepAliveStrategy();
+		private final long keepAlive;
+
+		KeepAliveStrategy(long keepAlive) {
+			this.keepAlive = keepAlive;
+		}
+
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = server.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+		}
+	}
+
 	/**
 	 * Constructor for obtaining a Session with an HTTP-AUTH username/password
 	 * This isn't supported by CouchDB - you need a proxy in front to use this
@@ -200,7 +393,7 @@ public class Session {
 	 */
 	public Database getDatabase(String name) {
 		CouchResponse resp = get(name);
-		if (resp.isOk()) {
+		if (resp != null && resp.isOk()) {
 			return new Database(resp.getBodyAsJSONObject(),this);
 		} else {
 			log.warn("Error getting database: "+name);
@@ -322,6 +515,19 @@ public class Session {
 		
 		return http(post);
 	}
+
+	/**
+	 * Send a POST with a streamed body (for documents with inline attachments).
+	 * The Content-Type comes from the entity.
+	 * @param url
+	 * @param entity
+	 * @return
+	 */
+	CouchResponse post(String url, HttpEntity entity) {
+		HttpPost post = new HttpPost(buildUrl(url));
+		post.setEntity(entity);
+		return http(post);
+	}
 	
 	/**
 	 * Send a PUT  (for creating databases)
@@ -329,7 +535,7 @@ public class Session {
 	 * @return
 	 */
 	CouchResponse put(String url) {
-		return put(url,null);
+		return put(url,(String) null);
 	}
 	/**
 	 * Send a PUT with a body (for creating documents)
@@ -369,6 +575,23 @@ public class Session {
 		}
 		return http(put);
 	}
+
+	/**
+	 * Send a PUT with a streamed body (for attachments).
+	 * <p>
+	 * The entity is written straight to the connection; a FileEntity or
+	 * InputStreamEntity is never held in memory.  The Content-Type
+	 * comes from the entity.
+	 * @param url
+	 * @param entity
+	 * @return
+	 */
+	CouchResponse put(String url, HttpEntity entity) {
+		HttpPut put = new HttpPut(buildUrl(url));
+		put.setEntity(entity);
+		return http(put);
+	}
+
 	/**
 	 * Send a GET request
 	 * @param url
@@ -408,12 +631,14 @@ public class Session {
 	 * and any headers / body that was sent back.
 	 * 
 	 * @param req
-	 * @return the CouchResponse (status / error / json document)
+	 * @return the CouchResponse (status / error / json document), or null if the server couldn't be reached
 	 */
 	protected CouchResponse http(HttpRequestBase req) {
 
 		HttpResponse httpResponse = null;
 		HttpEntity entity = null;
+		// Requests on other threads share this Session, so each gets its own response.
+		CouchResponse response = null;
 		
 		try {
 			if (usesAuth) {
@@ -421,7 +646,7 @@ public class Session {
 			}
 			httpResponse = httpClient.execute(req);
 			entity = httpResponse.getEntity();
-			lastResponse = new CouchResponse(req, httpResponse);
+			response = new CouchResponse(req, httpResponse);
 		} catch (IOException e) {
 			log.error(ExceptionUtils.getStackTrace(e));
 		} finally {
@@ -433,18 +658,84 @@ public class Session {
 				}
 			  }
 		}
-		return lastResponse;	
+		lastResponse = response;
+		return response;	
 	}
 
 	/**
 	 * Returns the last response for this given session
-	 * - useful for debugging purposes
+	 * - useful for debugging purposes.  When the Session is shared by
+	 * several threads, this is the response to whichever request finished last.
 	 * @return
 	 */
 	public CouchResponse getLastResponse() {
 		return lastResponse;
 	}
 	
+	/**
+	 * Start a background thread which closes pooled connections that have expired or been idle
+	 * longer than the given time.  A server or proxy will often drop an idle connection without
+	 * the client noticing; closing it first avoids a failed request.
+	 * <p>
+	 * The thread is a daemon, and is stopped by shutdown().
+	 * @param idleTime
+	 * @param unit
+	 */
+	public synchronized void startIdleConnectionMonitor(long idleTime, TimeUnit unit) {
+		if (idleMonitor == null) {
+			idleMonitor = new IdleConnectionMonitor(connManager, unit.toMillis(idleTime));
+			idleMonitor.start();
+		}
+	}
+	
+	/**
+	 * Stop the idle connection monitor, and close all the pooled connections.
+	 * The Session can't be used after this.
+	 */
+	public synchronized void shutdown() {
+		if (idleMonitor != null) {
+			idleMonitor.shutdown();
+			idleMonitor = null;
+		}
+		connManager.shutdown();
+	}
+	
+	/**
+	 * Closes expired and idle connections in the pool, checking every half idle time.
+	 */
+	static class IdleConnectionMonitor extends Thread {
+		private final ClientConnectionManager connManager;
+		private final long idleMillis;
+		private boolean stopped = false;
+		
+		IdleConnectionMonitor(ClientConnectionManager connManager, long idleMillis) {
+			super("couchdb4j-idle-monitor");
+			this.connManager = connManager;
+			this.idleMillis = idleMillis;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				synchronized (this) {
+					while (!stopped) {
+						wait(Math.max(1000, idleMillis / 2));
+						connManager.closeExpiredConnections();
+						connManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Stop.
+			}
+		}
+		
+		synchronized void shutdown() {
+			stopped = true;
+			notifyAll();
+		}
+	}
+	
 	public void setUserAgent(String ua)
 	{
 		httpParams.setParameter(AllClientPNames.USER_AGENT, ua);
@@ -5,10 +5,16 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fourspaces.couchdb.Database;
+import com.fourspaces.couchdb.Document;
 import com.fourspaces.couchdb.Session;
 
 public class DatabaseTest {
@@ -47,6 +53,30 @@ public class DatabaseTest {
 		assertEquals(sess.getDatabaseNames().size(),old+1);
 		sess.deleteDatabase("foo2");
 	}
-	
+
+	@Test public void streamedAttachments() throws Exception {
+		Database foo = sess.getDatabase("foo");
+		Document doc = new Document();
+		foo.saveDocument(doc);
+
+		Document resp = foo.putAttachment(doc.getId(), doc.getRev(), "bytes", "text/plain", "one".getBytes("UTF-8"));
+		assertTrue(resp.getBoolean("ok"));
+		assertEquals("one", foo.getAttachment(doc.getId(), "bytes"));
+
+		File file = File.createTempFile("couchdb4j", ".txt");
+		FileWriter wtr = new FileWriter(file);
+		wtr.write("two");
+		wtr.close();
+		resp = foo.putAttachment(doc.getId(), resp.getString("rev"), "file", "text/plain", file);
+		file.delete();
+		assertTrue(resp.getBoolean("ok"));
+		assertEquals("two", foo.getAttachment(doc.getId(), "file"));
+
+		// Unknown length: sent chunked.
+		resp = foo.putAttachment(doc.getId(), resp.getString("rev"), "stream", "text/plain",
+				new ByteArrayInputStream("three".getBytes("UTF-8")), -1);
+		assertTrue(resp.getBoolean("ok"));
+		assertEquals("three", foo.getAttachment(doc.getId(), "stream"));
+	}
 
 }
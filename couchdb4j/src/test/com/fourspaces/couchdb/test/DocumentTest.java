@@ -6,6 +6,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.Date;
 
 import net.sf.json.JSONObject;
@@ -124,6 +126,33 @@ public class DocumentTest {
 	  
 	  
 	}
+
+	@Test public void inlineAttachment() throws Exception {
+		Document doc = new Document();
+		doc.put("doc_type", "Feed");
+		doc.addAttachment("feed", "text/csv", "a,b\n1,2\n".getBytes("UTF-8"));
+		foo.saveDocument(doc);
+		assertNotNull(doc.getRev());
+		assertEquals("a,b\n1,2\n", foo.getAttachment(doc.getId(), "feed"));
+	}
+
+	@Test public void streamedInlineAttachment() throws Exception {
+		File file = File.createTempFile("couchdb4j", ".csv");
+		FileWriter wtr = new FileWriter(file);
+		wtr.write("a,b\n1,2\n3,4\n");
+		wtr.close();
+		Document doc = new Document();
+		doc.put("doc_type", "Mapping");
+		foo.saveDocument(doc, "content", "text/csv", file);
+		file.delete();
+		assertNotNull(doc.getRev());
+		assertNull(doc.getJSONObject().opt("_attachments"));
+		assertEquals("a,b\n1,2\n3,4\n", foo.getAttachment(doc.getId(), "content"));
+
+		doc = new Document();
+		foo.saveDocument(doc, "feed", "text/csv", "a,b\n1,2\n".getBytes("UTF-8"));
+		assertEquals("a,b\n1,2\n", foo.getAttachment(doc.getId(), "feed"));
+	}
 	  
 
 }